@@ -1,5 +1,3 @@
-import java.net.URL;
-
 import com.iconclude.webservices.extensions.java.interfaces.*;
 import com.iconclude.webservices.extensions.java.types.*;
 import com.iconclude.webservices.extensions.java.util.*;
@@ -67,11 +65,18 @@ public class CreateResourcePool implements IAction {
 	}
 
 	public static void createResourcePool(String server, String username, String password,
-			String cluster, String name) throws Exception {
-		// Get the vCenter URL
-		URL url = new URL("https://" + server + "/sdk");
-		// Connect to vCenter
-		ServiceInstance si = new ServiceInstance(url,username,password,true);
+			final String cluster, final String name) throws Exception {
+		// Run on a pooled vCenter session, logging in again if it expired
+		SessionPool.execute(server, username, password, new SessionTask<Void>() {
+			@Override
+			public Void run(ServiceInstance si) throws Exception {
+				createResourcePool(si, cluster, name);
+				return null;
+			}
+		});
+	}
+
+	public static void createResourcePool(ServiceInstance si, String cluster, String name) throws Exception {
 		// Get the root Folder
 		Folder rootFolder = si.getRootFolder();
 		// Get the inventory navigator
@@ -81,31 +86,32 @@ public class CreateResourcePool implements IAction {
 		if (clusterEntity == null) {
 			throw new Exception("Cluster not found.");
 		}
-		// Change the search root object to the found cluster
-		navigator = new InventoryNavigator(clusterEntity);
-		// Search for the root resourcepool
-		ResourcePool curRpEntity = (ResourcePool) navigator.searchManagedEntity("ResourcePool", "Resources");
+		// Get the root resourcepool
+		ResourcePool curRpEntity = clusterEntity.getResourcePool();
 	    if (curRpEntity == null) {
 	    	throw new Exception("Root resource pool not found (DRS enabled cluster?).");
 	    }
-	    // Change the search root to the found resourcepool
-	    navigator = new InventoryNavigator(curRpEntity);
+	    // Nothing to do if the whole path exists
+	    if (InventoryPathResolver.resolve(si, curRpEntity.getMOR(), name) != null) {
+	    	return;
+	    }
 	    // parse the given new resourcepool
 	    ResourceConfigSpec resConfSpec = new ResourceConfigSpec();
 	    ResourceAllocationInfo resAllocInfo = new ResourceAllocationInfo();
 	    resConfSpec.cpuAllocation = resAllocInfo;
 	    resConfSpec.memoryAllocation = resAllocInfo;
-		for (String folder : name.split("/")) {
-			ResourcePool rpEntity = (ResourcePool) navigator.searchManagedEntity("ResourcePool",folder);
-			if (rpEntity == null) {
-				rpEntity = curRpEntity.createResourcePool(folder, resConfSpec);
+	    String[] folders = name.split("/");
+	    ManagedObjectReference[] existing = InventoryPathResolver.resolvePrefix(si, curRpEntity.getMOR(), folders);
+		for (int i = 0; i < folders.length; i++) {
+			ResourcePool rpEntity;
+			if (existing[i] != null) {
+				rpEntity = new ResourcePool(si.getServerConnection(), existing[i]);
+			} else {
+				rpEntity = curRpEntity.createResourcePool(folders[i], resConfSpec);
+				InventoryPaths.add(si, rpEntity.getMOR(), folders[i], curRpEntity.getMOR());
 			}
 			curRpEntity = rpEntity;
-		    // Change the search root to the found or created resourcepool
-			navigator = new InventoryNavigator(curRpEntity);
 		}
-		//logout
-		si.getServerConnection().logout();
 	}
 
 	@Override
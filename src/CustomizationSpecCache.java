@@ -0,0 +1,102 @@
+import java.util.Calendar;
+import java.util.HashMap;
+
+import com.vmware.vim25.*;
+import com.vmware.vim25.mo.*;
+
+/**
+ * Cache of the customization specifications used by the deployments.
+ *
+ * A cached specification is checked against the changeVersion and
+ * lastUpdateTime of the specification manager info (one small property
+ * read instead of the whole specification), and is trusted without any
+ * check for a short while (oovijava.specs.validateInterval) after that.
+ * The specifications (passwords included) are cached per vCenter and user,
+ * as the sessions of the user are the only ones known to see them. They
+ * are shared by these sessions: they must not be modified.
+ */
+public class CustomizationSpecCache {
+
+	// Time a checked specification is trusted without checking again (ms)
+	private static final long VALIDATE_INTERVAL = Long.getLong("oovijava.specs.validateInterval", 30000L);
+
+	// Specifications per vCenter, user and name
+	private static final HashMap<String,Cached> cache = new HashMap<String,Cached>();
+
+	/**
+	 * Get a customization specification by name, null if not found.
+	 */
+	public static CustomizationSpec get(ServiceInstance si, String name) throws Exception {
+		String key = si.getServerConnection().getUrl().getHost() + "|" + si.getServerConnection().getUsername() + "|" + name;
+		Cached cached;
+		synchronized (cache) {
+			cached = cache.get(key);
+		}
+		CustomizationSpecManager manager = si.getCustomizationSpecManager();
+		if (cached != null) {
+			if (System.currentTimeMillis() - cached.validated <= VALIDATE_INTERVAL) {
+				return cached.item.getSpec();
+			}
+			if (isCurrent(cached.item.getInfo(), getInfo(manager, name))) {
+				cached.validated = System.currentTimeMillis();
+				return cached.item.getSpec();
+			}
+		}
+		// Not cached or changed since
+		CustomizationSpecItem item;
+		try {
+			item = manager.getCustomizationSpec(name);
+		} catch (NotFound e) {
+			item = null;
+		}
+		synchronized (cache) {
+			if (item == null) {
+				cache.remove(key);
+			} else {
+				cache.put(key, new Cached(item));
+			}
+		}
+		return item == null ? null : item.getSpec();
+	}
+
+	// Get the current info of a specification, null if not found
+	private static CustomizationSpecInfo getInfo(CustomizationSpecManager manager, String name) {
+		CustomizationSpecInfo[] infos = manager.getInfo();
+		if (infos == null) {
+			return null;
+		}
+		for (CustomizationSpecInfo info : infos) {
+			if (name.equals(info.getName())) {
+				return info;
+			}
+		}
+		return null;
+	}
+
+	// Check that the cached specification is still the current one
+	private static boolean isCurrent(CustomizationSpecInfo cached, CustomizationSpecInfo current) {
+		if (cached == null || current == null) {
+			return false;
+		}
+		return equal(cached.getChangeVersion(), current.getChangeVersion())
+				&& equal(cached.getLastUpdateTime(), current.getLastUpdateTime());
+	}
+
+	private static boolean equal(String s1, String s2) {
+		return s1 == null ? s2 == null : s1.equals(s2);
+	}
+
+	private static boolean equal(Calendar c1, Calendar c2) {
+		return c1 == null ? c2 == null : c2 != null && c1.getTimeInMillis() == c2.getTimeInMillis();
+	}
+
+	// A specification and the time it was last checked
+	private static class Cached {
+		final CustomizationSpecItem item;
+		volatile long validated = System.currentTimeMillis();
+
+		Cached(CustomizationSpecItem item) {
+			this.item = item;
+		}
+	}
+}
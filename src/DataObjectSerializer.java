@@ -0,0 +1,134 @@
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.gson.stream.JsonWriter;
+import com.vmware.vim25.ManagedObjectReference;
+
+/**
+ * Serializes property values, including vim25 data objects, to JSON.
+ *
+ * Data objects are written as objects of their non null public fields,
+ * arrays and ArrayOf* wrappers as arrays, references as {type, value} and
+ * calendars as ISO 8601 strings. The fields of a class are looked up once
+ * and kept.
+ */
+public class DataObjectSerializer {
+
+	// Public instance fields per class, superclass fields first
+	private static final ConcurrentHashMap<Class<?>,Field[]> fields = new ConcurrentHashMap<Class<?>,Field[]>();
+
+	/**
+	 * Get the text of a value: simple values as before (toString), calendars
+	 * as ISO 8601 and data objects or arrays as JSON.
+	 */
+	public static String toText(Object value) throws IOException {
+		if (value == null) {
+			return null;
+		}
+		if (value instanceof Calendar) {
+			return format((Calendar) value);
+		}
+		if (isSimple(value) || value instanceof ManagedObjectReference) {
+			return value.toString();
+		}
+		StringWriter out = new StringWriter();
+		JsonWriter json = new JsonWriter(out);
+		write(json, value);
+		json.flush();
+		return out.toString();
+	}
+
+	/**
+	 * Write a value to a JSON stream.
+	 */
+	public static void write(JsonWriter json, Object value) throws IOException {
+		if (value == null) {
+			json.nullValue();
+		} else if (value instanceof String || value instanceof Enum || value instanceof Character) {
+			json.value(value.toString());
+		} else if (value instanceof Boolean) {
+			json.value(((Boolean) value).booleanValue());
+		} else if (value instanceof Number) {
+			json.value((Number) value);
+		} else if (value instanceof Calendar) {
+			json.value(format((Calendar) value));
+		} else if (value instanceof ManagedObjectReference) {
+			ManagedObjectReference mor = (ManagedObjectReference) value;
+			json.beginObject();
+			json.name("type").value(mor.getType());
+			json.name("value").value(mor.getVal());
+			json.endObject();
+		} else if (value.getClass().isArray()) {
+			json.beginArray();
+			int length = Array.getLength(value);
+			for (int i = 0; i < length; i++) {
+				write(json, Array.get(value, i));
+			}
+			json.endArray();
+		} else {
+			Field[] accessors = getFields(value.getClass());
+			try {
+				if (value.getClass().getSimpleName().startsWith("ArrayOf") && accessors.length == 1) {
+					// wrapper of a single array
+					write(json, accessors[0].get(value));
+					return;
+				}
+				json.beginObject();
+				for (Field field : accessors) {
+					Object fieldValue = field.get(value);
+					if (fieldValue != null) {
+						json.name(field.getName());
+						write(json, fieldValue);
+					}
+				}
+				json.endObject();
+			} catch (IllegalAccessException e) {
+				throw new IOException("Could not serialize " + value.getClass().getName() + ".", e);
+			}
+		}
+	}
+
+	// Check if a value is written as is
+	private static boolean isSimple(Object value) {
+		return value instanceof String || value instanceof Number || value instanceof Boolean
+				|| value instanceof Enum || value instanceof Character;
+	}
+
+	// Get the public instance fields of a class
+	private static Field[] getFields(Class<?> type) {
+		Field[] result = fields.get(type);
+		if (result == null) {
+			ArrayList<Class<?>> hierarchy = new ArrayList<Class<?>>();
+			for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+				hierarchy.add(0, current);
+			}
+			ArrayList<Field> list = new ArrayList<Field>();
+			for (Class<?> current : hierarchy) {
+				for (Field field : current.getDeclaredFields()) {
+					int modifiers = field.getModifiers();
+					if (Modifier.isPublic(modifiers) && !Modifier.isStatic(modifiers)) {
+						list.add(field);
+					}
+				}
+			}
+			result = list.toArray(new Field[list.size()]);
+			fields.put(type, result);
+		}
+		return result;
+	}
+
+	// Format a calendar as ISO 8601 in UTC
+	private static String format(Calendar calendar) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(calendar.getTime());
+	}
+}
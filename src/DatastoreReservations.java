@@ -0,0 +1,255 @@
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import com.vmware.vim25.ManagedObjectReference;
+
+/**
+ * Ledger of the datastore space handed out to deployments by this RAS.
+ *
+ * vCenter reports the space of a deployment only once its disks are created,
+ * so parallel deployments would all see the same largest free datastore. A
+ * datastore handed out for N bytes has its free space lowered by N for a
+ * while (oovijava.reservations.window), and the selection uses the lowered
+ * values so concurrent placements spread over the datastores.
+ *
+ * A reservation ends early when the clone using it could not be started
+ * (release) or when its clone task is seen completed (attach then
+ * completed): vCenter then reports the space, or the space was never used.
+ * Both act on the handle returned when reserving, so only the deployment
+ * that made a reservation ends it.
+ */
+public class DatastoreReservations {
+
+	// Time a reservation is kept (ms)
+	private static final long WINDOW = Long.getLong("oovijava.reservations.window", 900000L);
+
+	// Reservations per vCenter and datastore, oldest first
+	private static final HashMap<String,LinkedList<Reservation>> reservations = new HashMap<String,LinkedList<Reservation>>();
+
+	/**
+	 * Select the candidate with the largest free space percentage once the
+	 * reservations are deducted, among those with room for size bytes. Null
+	 * if none fits.
+	 */
+	public static Candidate select(String host, Collection<Candidate> candidates, long size) {
+		synchronized (reservations) {
+			return select(host, candidates, size, false);
+		}
+	}
+
+	/**
+	 * Select a candidate as select() does and reserve size bytes on it, as one
+	 * atomic operation. The reservation of the returned candidate is its
+	 * handle (null for a size of 0).
+	 */
+	public static Candidate selectAndReserve(String host, Collection<Candidate> candidates, long size) {
+		synchronized (reservations) {
+			return select(host, candidates, size, true);
+		}
+	}
+
+	/**
+	 * Reserve space on a datastore, the returned handle releasing or
+	 * attaching this reservation only.
+	 */
+	public static Reservation reserve(String host, ManagedObjectReference datastore, long size) {
+		synchronized (reservations) {
+			String key = key(host, datastore);
+			LinkedList<Reservation> list = reservations.get(key);
+			if (list == null) {
+				list = new LinkedList<Reservation>();
+				reservations.put(key, list);
+			}
+			Reservation reservation = new Reservation(key, datastore, size, System.currentTimeMillis() + WINDOW);
+			list.add(reservation);
+			return reservation;
+		}
+	}
+
+	/**
+	 * Release a reservation, the clone it was made for could not be started.
+	 */
+	public static void release(Reservation reservation) {
+		if (reservation == null) {
+			return;
+		}
+		synchronized (reservations) {
+			LinkedList<Reservation> list = reservations.get(reservation.key);
+			if (list == null) {
+				return;
+			}
+			for (Iterator<Reservation> it = list.iterator(); it.hasNext();) {
+				if (it.next() == reservation) {
+					it.remove();
+					break;
+				}
+			}
+			if (list.isEmpty()) {
+				reservations.remove(reservation.key);
+			}
+		}
+	}
+
+	/**
+	 * Attach a reservation to the clone task using it.
+	 */
+	public static void attach(Reservation reservation, ManagedObjectReference task) {
+		if (reservation == null) {
+			return;
+		}
+		synchronized (reservations) {
+			reservation.task = task.getVal();
+		}
+	}
+
+	/**
+	 * Release the reservations attached to a completed task.
+	 */
+	public static void completed(String host, ManagedObjectReference task) {
+		synchronized (reservations) {
+			for (Iterator<Map.Entry<String,LinkedList<Reservation>>> lists = reservations.entrySet().iterator(); lists.hasNext();) {
+				Map.Entry<String,LinkedList<Reservation>> list = lists.next();
+				if (!list.getKey().startsWith(host + "|")) {
+					continue;
+				}
+				for (Iterator<Reservation> it = list.getValue().iterator(); it.hasNext();) {
+					if (task.getVal().equals(it.next().task)) {
+						it.remove();
+					}
+				}
+				if (list.getValue().isEmpty()) {
+					lists.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the space currently reserved on a datastore.
+	 */
+	public static long getReserved(String host, ManagedObjectReference datastore) {
+		synchronized (reservations) {
+			return reserved(key(host, datastore), System.currentTimeMillis());
+		}
+	}
+
+	// Select the best candidate, lock held
+	private static Candidate select(String host, Collection<Candidate> candidates, long size, boolean reserve) {
+		long now = System.currentTimeMillis();
+		// heap of the candidates, largest adjusted free percentage first
+		PriorityQueue<Candidate> heap = new PriorityQueue<Candidate>(Math.max(1, candidates.size()), new Comparator<Candidate>() {
+			@Override
+			public int compare(Candidate c1, Candidate c2) {
+				return Double.compare(c2.getFreePercentage(), c1.getFreePercentage());
+			}
+		});
+		for (Candidate candidate : candidates) {
+			candidate.reserved = reserved(key(host, candidate.mor), now);
+			heap.add(candidate);
+		}
+		Candidate best = heap.poll();
+		while (best != null && best.getFreeSpace() < size) {
+			best = heap.poll();
+		}
+		if (best != null && reserve && size > 0) {
+			best.reservation = reserve(host, best.mor, size);
+		}
+		return best;
+	}
+
+	// Space reserved on a datastore, expired reservations dropped
+	private static long reserved(String key, long now) {
+		LinkedList<Reservation> list = reservations.get(key);
+		if (list == null) {
+			return 0;
+		}
+		long total = 0;
+		for (Iterator<Reservation> it = list.iterator(); it.hasNext();) {
+			Reservation reservation = it.next();
+			if (reservation.expires <= now) {
+				it.remove();
+			} else {
+				total += reservation.size;
+			}
+		}
+		if (list.isEmpty()) {
+			reservations.remove(key);
+		}
+		return total;
+	}
+
+	// Ledger key of a datastore
+	private static String key(String host, ManagedObjectReference datastore) {
+		return host + "|" + datastore.getVal();
+	}
+
+	/**
+	 * A datastore that can be selected.
+	 */
+	public static class Candidate {
+		final ManagedObjectReference mor;
+		final String name;
+		final long freeSpace;
+		final long capacity;
+		long reserved = 0;
+		Reservation reservation;
+
+		public Candidate(ManagedObjectReference mor, String name, long freeSpace, long capacity) {
+			this.mor = mor;
+			this.name = name;
+			this.freeSpace = freeSpace;
+			this.capacity = capacity;
+		}
+
+		public ManagedObjectReference getMOR() {
+			return mor;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		// Free space once the reservations are deducted
+		public long getFreeSpace() {
+			return freeSpace - reserved;
+		}
+
+		// Reservation made on the candidate by selectAndReserve, null if none
+		public Reservation getReservation() {
+			return reservation;
+		}
+
+		// Free space percentage once the reservations are deducted
+		public double getFreePercentage() {
+			return capacity > 0 ? (double) getFreeSpace() / capacity : 0.0;
+		}
+	}
+
+	/**
+	 * Space reserved on a datastore until a time, and the clone task using it
+	 * once started.
+	 */
+	public static class Reservation {
+		final String key;
+		final ManagedObjectReference datastore;
+		final long size;
+		final long expires;
+		String task;
+
+		Reservation(String key, ManagedObjectReference datastore, long size, long expires) {
+			this.key = key;
+			this.datastore = datastore;
+			this.size = size;
+			this.expires = expires;
+		}
+
+		public ManagedObjectReference getDatastore() {
+			return datastore;
+		}
+	}
+}
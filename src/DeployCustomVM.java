@@ -1,7 +1,8 @@
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
-import java.net.URL;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 
 import javax.naming.ldap.ManageReferralControl;
 
@@ -28,10 +29,12 @@ public class DeployCustomVM implements IAction {
 			+"-Password: vCenter password\n"
 			+"-Name: name of the VM\n"
 			+"-Template: VM template to use (name or reference)\n"
-			+"-Cluster: cluster where to deploy the VM\n"
-			+"-Datasstore or datastore cluster: datastore or datastore cluster to use (name or reference)\n"
-			+"-Provisioning: provisionning type (thin/thick: default thick)\n"
-			+"-ResourcePool: ressource pool where the VM will be placed (default: resource)\n"
+			+"-Cluster: cluster where to deploy the VM, the host being chosen from the cached host usage\n"
+			+"         (optional, not used when the resource pool is not in the cluster)\n"
+			+"-Datasstore or datastore cluster: datastore or datastore cluster to use (name or reference, default: chosen in the cluster)\n"
+			+"-Provisioning: provisionning type (thin/thick/linked[:snapshot]: default thick)\n"
+			+"              linked clones the template snapshot (default: current) with child disks\n"
+			+"-ResourcePool: ressource pool where the VM will be placed (default: root resource pool of the cluster)\n"
 			+"-Folder: folder where to place the VM (default: /)\n"
 			+"-CustomizationTemplate: customization tempalte (sysprep) to use\n"
 			+"-IPAddress: IP Address of the VM"
@@ -113,9 +116,9 @@ public class DeployCustomVM implements IAction {
 		// Set the template argument
 		RASBinding templatearg = RASBindingFactory.createPromptBinding("Template:", true);
 		// Set the cluster argument
-		RASBinding clusterarg = RASBindingFactory.createPromptBinding("Cluster:", true);
+		RASBinding clusterarg = RASBindingFactory.createPromptBinding("Cluster:", false);
 		// Set the datastore argument
-		RASBinding datastorearg = RASBindingFactory.createPromptBinding("Datastore:",true);
+		RASBinding datastorearg = RASBindingFactory.createPromptBinding("Datastore:",false);
 		// Set the provisionning argument
 		RASBinding provisionningarg = RASBindingFactory.createPromptBinding("Provisionning",false);
 		// Set the resource pool argument
@@ -163,7 +166,7 @@ public class DeployCustomVM implements IAction {
 	}
 
 	public static ManagedObjectReference stringToMor(String reference) throws Exception {
-		if (reference.matches("^[A-Za-z0-9]:[A-Za-z0-9-]+$")) {
+		if (reference.matches("^[A-Za-z0-9]+:[A-Za-z0-9-]+$")) {
 			ManagedObjectReference mor = new ManagedObjectReference();
 		    String[] vmrefs = reference.split(":"); 
 			if (vmrefs.length != 2) {
@@ -177,31 +180,49 @@ public class DeployCustomVM implements IAction {
 	}
 
 	public static Task deployCustomVM(String server, String username, String password,
-			String name, String template, String cluster, String datastore, String provisionning,
-			String resourcepool, String folder, String customization, String ipaddress) throws Exception {
+			final String name, final String template, final String cluster, final String datastore, final String provisionning,
+			final String resourcepool, final String folder, final String customization, final String ipaddress) throws Exception {
+		// Run on a pooled vCenter session, logging in again if it expired
+		return SessionPool.execute(server, username, password, new SessionTask<Task>() {
+			@Override
+			public Task run(ServiceInstance si) throws Exception {
+				return deployCustomVM(si, name, template, cluster, datastore, provisionning, resourcepool, folder, customization, ipaddress);
+			}
+		});
+	}
+
+	public static Task deployCustomVM(ServiceInstance si,
+			String name, String template, String cluster, String datastore, String provisionning, String resourcepool, String folder, String customization, String ipaddress) throws Exception {
+		return deploy(si, prepare(si, template, cluster, datastore, provisionning, resourcepool, folder, customization), name, ipaddress);
+	}
+
+	/**
+	 * Resolve the references shared by the deployments of a template.
+	 */
+	public static Deployment prepare(ServiceInstance si,
+			String template, String cluster, String datastore, String provisionning, String resourcepool, String folder, String customization) throws Exception {
 		
 		// Set default parameters if provided empty
-		// Provisionning type
+		// Provisionning type (linked may name the template snapshot)
+		String snapshot = null;
+		if (provisionning.toLowerCase().startsWith("linked:")) {
+			snapshot = provisionning.substring("linked:".length());
+			provisionning = "linked";
+		}
 		provisionning = provisionning.toLowerCase();
 		if (provisionning.equals("")) {
 			provisionning="thick";
+		} else if (provisionning.equals("instant")) {
+			throw new Exception("Instant clone is not supported by the vSphere API version of this RAS.");
 		} else {
-			if (!(provisionning.equals("thick") | provisionning.equals("thin"))) {
-				throw new Exception("Provisionning nor thick or thin or empty.");
+			if (!(provisionning.equals("thick") | provisionning.equals("thin") | provisionning.equals("linked"))) {
+				throw new Exception("Provisionning nor thick or thin or linked or empty.");
 			}
 		}
-		// Resource Pool
-		if (resourcepool.equals("")) {
-			resourcepool = "resources";
-		}
 		// Folder
 		if (folder.equals("")) {
 			folder = "vm";
 		}
-		// Get the vCenter URL
-		URL url = new URL("https://" + server + "/sdk");
-		// Connect to vCenter
-		ServiceInstance si = new ServiceInstance(url,username,password,true);
 		// Get the root Folder
 		Folder rootFolder = si.getRootFolder();
 		// Get the inventory navigator
@@ -212,56 +233,65 @@ public class DeployCustomVM implements IAction {
 		if (template.matches("^VirtualMachine:[A-Za-z0-9-]+$")) {
 			vm_ref = stringToMor(template);
 		} else {
-			VirtualMachine vm = (VirtualMachine) navigator.searchManagedEntity("VirtualMachine",template);
-			vm_ref = vm.getMOR();
+			// cached per vCenter, checked against the current name
+			VirtualMachine vm = (VirtualMachine) EntityCache.find(si, "VirtualMachine", template);
+			if (vm != null) {
+				vm_ref = vm.getMOR();
+			}
 		}
 		if (vm_ref == null) {
 			throw new Exception("Virtual Machine template not found.");
 		}
-        // resource pool
+		// cluster: host and datastore chosen by the placement engine
+		ManagedObjectReference cl_ref = null;
+		if (cluster != null && !cluster.equals("")) {
+			if (cluster.matches("^ClusterComputeResource:[A-Za-z0-9-]+$")) {
+				cl_ref = stringToMor(cluster);
+			} else {
+				ManagedEntity cl = EntityCache.find(si, "ClusterComputeResource", cluster);
+				if (cl != null) {
+					cl_ref = cl.getMOR();
+				}
+			}
+			if (cl_ref == null) {
+				throw new Exception("Provided cluster not found.");
+			}
+		}
+        // resource pool (default: root resource pool of the cluster)
 		ManagedObjectReference rp_ref = null;
-		if (resourcepool.matches("^ResourcePool:[A-Za-z0-9-]+$")) {
+		if (resourcepool.equals("") && cl_ref != null) {
+			ObjectContent oc = PropertyRetriever.retrieveObject(si, cl_ref, new String[] { "resourcePool" });
+			rp_ref = oc == null ? null : (ManagedObjectReference) PropertyRetriever.getValue(oc, "resourcePool");
+		} else if (resourcepool.matches("^ResourcePool:[A-Za-z0-9-]+$")) {
 			rp_ref = stringToMor(resourcepool);
 		} else { 
-			ResourcePool rp = (ResourcePool) navigator.searchManagedEntity("ResourcePool",resourcepool);
-			rp_ref = rp.getMOR();
+			ResourcePool rp = (ResourcePool) navigator.searchManagedEntity("ResourcePool",resourcepool.equals("") ? "resources" : resourcepool);
+			if (rp != null) {
+				rp_ref = rp.getMOR();
+			}
 		}
 		if (rp_ref == null) {
 			throw new Exception("Provided resourcepool not found.");
 		}
-		// Search for the right folder
-		/* seems strange to search using inventorynavigator...
-		InventoryNavigator currentnavigator = new InventoryNavigator(rootFolder);
-		for (String subfolder : folders) {
-			fld  = (Folder) currentnavigator.searchManagedEntity("Folder", subfolder);
-			currentnavigator = new InventoryNavigator(fld);
+		if (cl_ref != null && !resourcepool.equals("")) {
+			// a host of the cluster can't run a VM of a pool of another
+			// cluster or host: the pool decides the placement then
+			ObjectContent oc = PropertyRetriever.retrieveObject(si, rp_ref, new String[] { "owner" });
+			ManagedObjectReference owner = oc == null ? null : (ManagedObjectReference) PropertyRetriever.getValue(oc, "owner");
+			if (owner == null || !cl_ref.getVal().equals(owner.getVal())) {
+				cl_ref = null;
+			}
 		}
-		*/
-		// let's search folder style... (plus no search if managed object rovided)
+		// Search for the right folder (no search if managed object provided)
 		ManagedObjectReference fld_ref = null;
 		if (folder.matches("^Folder:[A-Za-z0-9-]+$")) {
 			fld_ref = stringToMor(folder);
 		} else {
-			Folder searched = rootFolder;
-			String[] folders = folder.split("/");
-			for (String subfolder: folders) {
-				Boolean found = false;
-				for(ManagedEntity current: searched.getChildEntity()) {
-					if (current instanceof Folder) {
-						if (subfolder.equals(current.getName())) {
-							searched = (Folder)current;
-							found = true;
-							break;
-						}
-					}
-				}
-				if (!found) {
-					// looped trought managed entities but no match...
-					searched = null;
-					break;
-				}
+			// resolve the whole path at once
+			fld_ref = InventoryPathResolver.resolve(si, folder);
+			if (fld_ref != null && !"Folder".equals(fld_ref.getType())) {
+				fld_ref = null;
 			}
-			fld_ref = searched.getMOR();
 		}
 		if (fld_ref==null) {
 			throw new Exception("Provided folder not found.");
@@ -269,9 +299,11 @@ public class DeployCustomVM implements IAction {
 		// Search for specified datastore
 		ManagedObjectReference pod_ref = null;
 		ManagedObjectReference ds_ref = null;
-		if (datastore.matches("^Datastore:[A-Za-z0-9-]+$")) {
+		if (datastore.equals("") && cl_ref != null) {
+			// chosen by the placement engine at deploy time
+		} else if (datastore.matches("^Datastore:[A-Za-z0-9-]+$")) {
 			ds_ref = stringToMor(datastore);
-		} else if (datastore.matches("^StoragePod:[A-Za-z0-9]+$")) {
+		} else if (datastore.matches("^StoragePod:[A-Za-z0-9-]+$")) {
 			pod_ref = stringToMor(datastore);
 		} else {
 			Datastore ds = (Datastore) navigator.searchManagedEntity("Datastore",datastore);
@@ -279,46 +311,77 @@ public class DeployCustomVM implements IAction {
 				ds_ref = ds.getMOR();
 			} else {
 				StoragePod pod = (StoragePod) navigator.searchManagedEntity("StoragePod", datastore);
-				pod_ref = pod.getMOR();
+				if (pod != null) {
+					pod_ref = pod.getMOR();
+				}
 			}
 		}
-		if (ds_ref==null && pod_ref==null) {
+		if (ds_ref==null && pod_ref==null && !(datastore.equals("") && cl_ref != null)) {
 			throw new Exception("Provided datastore or datastore cluster not found.");
 		}
-		// Get the customization spec manager
-		CustomizationSpecManager customSpecMgr = si.getCustomizationSpecManager();
-		// Search for Specified Customization Sepcifications
-		CustomizationSpecItem customSpec = customSpecMgr.getCustomizationSpec(customization);
+		// Search for Specified Customization Sepcifications (cached, shared)
+		CustomizationSpec customSpec = CustomizationSpecCache.get(si, customization);
 		if (customSpec==null) {
 			throw new Exception("Provided Customization specification not found.");
 		}
 		// Set the provisionning type
 		Boolean thinProvisioned = "thin".equals(provisionning);
-		// Parameters Object Set
+		// Search for the snapshot to clone from (linked clones)
+		ManagedObjectReference snap_ref = null;
+		if (provisionning.equals("linked")) {
+			snap_ref = getSnapshot(si, vm_ref, snapshot);
+		}
+		Deployment deployment = new Deployment(vm_ref, rp_ref, fld_ref, ds_ref, pod_ref, customSpec, thinProvisioned, snap_ref);
+		deployment.cluster = cl_ref;
+		if (cl_ref != null || pod_ref != null) {
+			// what a clone takes on its host and datastore, for the placements
+			ObjectContent oc = PropertyRetriever.retrieveObject(si, vm_ref, new String[] { "summary.storage.committed", "summary.config.memorySizeMB" });
+			Object size = oc == null ? null : PropertyRetriever.getValue(oc, "summary.storage.committed");
+			Object memory = oc == null ? null : PropertyRetriever.getValue(oc, "summary.config.memorySizeMB");
+			deployment.memoryMB = memory instanceof Number ? ((Number) memory).longValue() : 0;
+			if (snap_ref != null) {
+				// a linked clone starts with empty child disks, its swap file
+				// (the memory size) is what it takes at power on
+				deployment.size = deployment.memoryMB * 1024 * 1024;
+			} else {
+				deployment.size = size instanceof Number ? ((Number) size).longValue() : 0;
+			}
+		}
+		return deployment;
+	}
+
+	/**
+	 * Start the clone of a prepared deployment.
+	 */
+	public static Task deploy(ServiceInstance si, Deployment deployment, String name, String ipaddress) throws Exception {
+		return deploy(si, deployment, name, ipaddress, null);
+	}
+
+	/**
+	 * Start the clone of a prepared deployment on a datastore reserved by the
+	 * caller (a datastore of the storage pod), or placed as prepared when
+	 * null. The reservation used, the caller's or the one of the placement
+	 * engine, is attached to the clone task. The placement engine one is
+	 * released when the clone can't be started, the caller releasing its own.
+	 */
+	public static Task deploy(ServiceInstance si, Deployment deployment, String name, String ipaddress,
+			DatastoreReservations.Reservation reserved) throws Exception {
+		ManagedObjectReference vm_ref = deployment.template;
+		ManagedObjectReference fld_ref = deployment.folder;
+		ManagedObjectReference ds_ref = reserved != null ? reserved.getDatastore() : deployment.datastore;
+		ManagedObjectReference pod_ref = deployment.storagePod;
+		// Space reserved by the placement engine for this clone
+		DatastoreReservations.Reservation placed = null;
 		// Build the clone specification
-		VirtualMachineCloneSpec cloneSpec = new VirtualMachineCloneSpec();
-		// The target vm is not a template
-		cloneSpec.template = false;
-		// The target vm won't be powered on
-		cloneSpec.powerOn = false;
-		// Set the parameters for the VM destination
-		cloneSpec.location =  new VirtualMachineRelocateSpec();
-		// Set the resourcepool
-		cloneSpec.location.pool = rp_ref;
-		// Set the transform parameter
-		if (thinProvisioned) {
-			cloneSpec.location.transform =  VirtualMachineRelocateTransformation.sparse;
-		} else {
-			cloneSpec.location.transform =  VirtualMachineRelocateTransformation.flat;
+		VirtualMachineCloneSpec cloneSpec = buildCloneSpec(deployment, ipaddress);
+		if (deployment.cluster != null && (ds_ref != null || pod_ref == null)) {
+			// Choose the host (and the datastore if not given) in the cluster,
+			// storage DRS placements being left to storage DRS
+			PlacementEngine.Placement placement = PlacementEngine.place(si, deployment.cluster, ds_ref, deployment.size, deployment.memoryMB);
+			cloneSpec.location.host = placement.getHost();
+			ds_ref = placement.getDatastore();
+			placed = placement.getReservation();
 		}
-		// Set the customization specification
-		cloneSpec.customization = customSpec.getSpec();
-		// Personalize the customisation spec (IP Address)
-		cloneSpec.customization.nicSettingMap[0].adapter.ip = new CustomizationFixedIp();
-		((CustomizationFixedIp)cloneSpec.customization.nicSettingMap[0].adapter.ip).ipAddress = ipaddress;
-		// reset annotation
-		cloneSpec.config =  new VirtualMachineConfigSpec();
-		cloneSpec.config.annotation = "";
 		Task task = null;
 		if (ds_ref!=null) {
 			// Set the datastore
@@ -326,27 +389,22 @@ public class DeployCustomVM implements IAction {
 			//Start the clone
 			VirtualMachine vm = new VirtualMachine(si.getServerConnection(),vm_ref);
 			Folder fld = new Folder(si.getServerConnection(),fld_ref);
-			task = vm.cloneVM_Task(fld, name, cloneSpec);
+			try {
+				task = vm.cloneVM_Task(fld, name, cloneSpec);
+			} catch (Exception e) {
+				DatastoreReservations.release(placed);
+				throw e;
+			}
+			// released once the task is seen completed
+			DatastoreReservations.attach(placed != null ? placed : reserved, task.getMOR());
 		} else if (pod_ref != null) {
 			// define the storage placement sepcifications;
-			StoragePlacementSpec storageSpec = new StoragePlacementSpec();
-			// set the name of the destination virtual machine
-			storageSpec.cloneName = name;
-			// Clone template to a new virtual machine
-			storageSpec.type = "clone";
-			// Deploy Virtual Machine in destination folder
-			storageSpec.folder = fld_ref;
-			// Select the storage pod to deplot to.
-			storageSpec.podSelectionSpec = new StorageDrsPodSelectionSpec();
-			storageSpec.podSelectionSpec.storagePod = pod_ref;
-			// Set the clone sepecifications
-			storageSpec.cloneSpec = cloneSpec;
-			storageSpec.vm = vm_ref;
+			StoragePlacementSpec storageSpec = buildStorageSpec(deployment, name, cloneSpec);
 			// Get the storage manager
 			StorageResourceManager storageManager = new StorageResourceManager(si.getServerConnection(), si.getServiceContent().getStorageResourceManager());
 			// Get the storage recommendation
 			StoragePlacementResult recommendation = storageManager.recommendDatastores(storageSpec);
-			if (recommendation.recommendations.length <= 0) {
+			if (recommendation.recommendations == null || recommendation.recommendations.length <= 0) {
 				throw new Exception("No storage recommandation provided");
 			}
             String[] recommendationKey = new String[1];
@@ -356,12 +414,153 @@ public class DeployCustomVM implements IAction {
 		} else {
 			throw new Exception("Neither datastore not datastore deployement detected.");
 		}
-		si.getServerConnection().logout();
 		//OO will fail if he must wait for task completion...
 		//It can monitor the task status
 		return task;
 	}
 
+	// Build the clone specification of a prepared deployment, not customized
+	// without ip address
+	static VirtualMachineCloneSpec buildCloneSpec(Deployment deployment, String ipaddress) throws Exception {
+		VirtualMachineCloneSpec cloneSpec = new VirtualMachineCloneSpec();
+		// The target vm is not a template
+		cloneSpec.template = false;
+		// The target vm won't be powered on
+		cloneSpec.powerOn = false;
+		// Set the parameters for the VM destination
+		cloneSpec.location =  new VirtualMachineRelocateSpec();
+		// Set the resourcepool
+		cloneSpec.location.pool = deployment.resourcePool;
+		// Set the transform parameter
+		if (deployment.snapshot != null) {
+			// Linked clone: the disks are children of the snapshot ones, nothing is copied
+			cloneSpec.snapshot = deployment.snapshot;
+			cloneSpec.location.diskMoveType = VirtualMachineRelocateDiskMoveOptions.createNewChildDiskBacking.toString();
+		} else if (deployment.thinProvisioned) {
+			cloneSpec.location.transform =  VirtualMachineRelocateTransformation.sparse;
+		} else {
+			cloneSpec.location.transform =  VirtualMachineRelocateTransformation.flat;
+		}
+		// Set the customization specification, personalized (IP Address),
+		// none for a specification only used to get a placement
+		if (ipaddress != null) {
+			cloneSpec.customization = withIpAddress(deployment.customization, ipaddress);
+		}
+		// reset annotation
+		cloneSpec.config =  new VirtualMachineConfigSpec();
+		cloneSpec.config.annotation = "";
+		return cloneSpec;
+	}
+
+	// Build the storage placement specification of a clone on the storage pod
+	static StoragePlacementSpec buildStorageSpec(Deployment deployment, String name, VirtualMachineCloneSpec cloneSpec) {
+		StoragePlacementSpec storageSpec = new StoragePlacementSpec();
+		// set the name of the destination virtual machine
+		storageSpec.cloneName = name;
+		// Clone template to a new virtual machine
+		storageSpec.type = "clone";
+		// Deploy Virtual Machine in destination folder
+		storageSpec.folder = deployment.folder;
+		// Select the storage pod to deplot to.
+		storageSpec.podSelectionSpec = new StorageDrsPodSelectionSpec();
+		storageSpec.podSelectionSpec.storagePod = deployment.storagePod;
+		// Set the clone sepecifications
+		storageSpec.cloneSpec = cloneSpec;
+		storageSpec.vm = deployment.template;
+		return storageSpec;
+	}
+
+	// Get a snapshot of a template by name, the current one if no name is given
+	private static ManagedObjectReference getSnapshot(ServiceInstance si, ManagedObjectReference vm_ref, String name) throws Exception {
+		ObjectContent oc = PropertyRetriever.retrieveObject(si, vm_ref, new String[] { "snapshot" });
+		VirtualMachineSnapshotInfo info = oc == null ? null : (VirtualMachineSnapshotInfo) PropertyRetriever.getValue(oc, "snapshot");
+		ManagedObjectReference snap_ref = null;
+		if (info != null) {
+			if (name == null || name.equals("")) {
+				snap_ref = info.currentSnapshot;
+			} else {
+				snap_ref = findSnapshot(info.rootSnapshotList, name);
+			}
+		}
+		if (snap_ref == null) {
+			throw new Exception("Template snapshot not found for a linked clone.");
+		}
+		return snap_ref;
+	}
+
+	// Search a snapshot tree by name
+	private static ManagedObjectReference findSnapshot(VirtualMachineSnapshotTree[] trees, String name) {
+		if (trees == null) {
+			return null;
+		}
+		for (VirtualMachineSnapshotTree tree : trees) {
+			if (name.equals(tree.name)) {
+				return tree.snapshot;
+			}
+			ManagedObjectReference found = findSnapshot(tree.childSnapshotList, name);
+			if (found != null) {
+				return found;
+			}
+		}
+		return null;
+	}
+
+	// Copy a customization specification with the ip address of its first
+	// adapter set, the shared specification being left untouched
+	private static CustomizationSpec withIpAddress(CustomizationSpec spec, String ipaddress) throws Exception {
+		CustomizationSpec copy = copyOf(spec);
+		copy.nicSettingMap = spec.nicSettingMap.clone();
+		copy.nicSettingMap[0] = copyOf(spec.nicSettingMap[0]);
+		copy.nicSettingMap[0].adapter = copyOf(spec.nicSettingMap[0].adapter);
+		CustomizationFixedIp ip = new CustomizationFixedIp();
+		ip.ipAddress = ipaddress;
+		copy.nicSettingMap[0].adapter.ip = ip;
+		return copy;
+	}
+
+	// Shallow copy of a data object
+	@SuppressWarnings("unchecked")
+	private static <T> T copyOf(T object) throws Exception {
+		T copy = (T) object.getClass().newInstance();
+		for (Field field : object.getClass().getFields()) {
+			if (!Modifier.isStatic(field.getModifiers())) {
+				field.set(copy, field.get(object));
+			}
+		}
+		return copy;
+	}
+
+	/**
+	 * References resolved once for the deployments of a template.
+	 */
+	public static class Deployment {
+		final ManagedObjectReference template;
+		final ManagedObjectReference resourcePool;
+		final ManagedObjectReference folder;
+		final ManagedObjectReference datastore;
+		final ManagedObjectReference storagePod;
+		final CustomizationSpec customization;
+		final boolean thinProvisioned;
+		final ManagedObjectReference snapshot;
+		// placement in the cluster, when given
+		ManagedObjectReference cluster;
+		long size;
+		long memoryMB;
+
+		Deployment(ManagedObjectReference template, ManagedObjectReference resourcePool, ManagedObjectReference folder,
+				ManagedObjectReference datastore, ManagedObjectReference storagePod, CustomizationSpec customization, boolean thinProvisioned,
+				ManagedObjectReference snapshot) {
+			this.template = template;
+			this.resourcePool = resourcePool;
+			this.folder = folder;
+			this.datastore = datastore;
+			this.storagePod = storagePod;
+			this.customization = customization;
+			this.thinProvisioned = thinProvisioned;
+			this.snapshot = snapshot;
+		}
+	}
+
 	/**
 	 * @param args
 	 */
@@ -0,0 +1,467 @@
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.iconclude.webservices.extensions.java.interfaces.*;
+import com.iconclude.webservices.extensions.java.types.*;
+import com.iconclude.webservices.extensions.java.util.*;
+import com.opsware.pas.content.commons.util.StringUtils;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.mo.*;
+
+public class DeployCustomVMs implements IAction {
+
+	// Description of the action
+	private static String DESCRIPTION =  ""
+			+"<pre>"
+			+"Deploys a batch of Virtual Machines with Customization Specs.\n"
+			+"\n"
+			+"The template, resource pool, folder, datastore and customization\n"
+			+"specification are resolved once for the batch, then the clones are\n"
+			+"started concurrently.\n"
+			+"\n"
+			+"Requirement:\n"
+			+"The customization template used should only require an ip address\n"
+			+"\n"
+			+"Inputs:\n"
+			+"-vCenter: vCenter server\n"
+			+"-Username: vCenter username\n"
+			+"-Password: vCenter password\n"
+			+"-VMs: virtual machines to deploy, separated by ; or new lines, as name,ipaddress[,key=value...]\n"
+			+"      the keys datastore, provisionning, resourcepool and folder override the batch inputs\n"
+			+"-Template: VM template to use (name or reference)\n"
+			+"-Cluster: cluster where to deploy the VMs, the hosts being chosen from the cached host usage\n"
+			+"          (optional, not used when the resource pool is not in the cluster)\n"
+			+"-Datasstore or datastore cluster: datastore or datastore cluster to use (name or reference, default: chosen in the cluster)\n"
+			+"-Provisioning: provisionning type (thin/thick/linked[:snapshot]: default thick)\n"
+			+"-ResourcePool: ressource pool where the VMs will be placed (default: root resource pool of the cluster)\n"
+			+"-Folder: folder where to place the VMs (default: /)\n"
+			+"-CustomizationTemplate: customization tempalte (sysprep) to use\n"
+			+"-Concurrency: clones started at the same time, at most oovijava.workers.maxThreads (default: 8)\n"
+			+"\n"
+			+"Responses:\n"
+			+"-success: the VMs were deployed\n"
+			+"-failure: an error occured while deploying at least one VM\n"
+			+"\n</pre>";
+
+	// Success return code
+	public static final int SUCCESS = 0;
+
+	// Failure return code
+	public static final int FAILURE = 1;
+
+	// result String identifier.
+	private static final String RETURNRESULT = "returnResult";
+
+	// Default number of clones started at the same time
+	private static final int CONCURRENCY = 8;
+
+	// Inputs a virtual machine can override
+	private static final String[] OVERRIDES = new String[] { "datastore", "provisionning", "resourcepool", "folder" };
+
+	@Override
+	public ActionResult execute(ISessionContext session, ActionRequest request,
+			IActionRegistry registry) throws Exception {
+
+		// Create the result
+		ActionResult result = new ActionResult();
+
+		String server = ActionRequestUtils.resolveStringParam(request, "server");
+		String username = ActionRequestUtils.resolveStringParam(request, "username");
+		String password = ActionRequestUtils.resolveStringParam(request, "password");
+		String vms = ActionRequestUtils.resolveStringParam(request, "vms");
+		String template = ActionRequestUtils.resolveStringParam(request, "template");
+		String cluster = ActionRequestUtils.resolveStringParam(request, "cluster");
+		String datastore = ActionRequestUtils.resolveStringParam(request, "datastore");
+		String provisionning = ActionRequestUtils.resolveStringParam(request, "provisionning");
+		String resourcepool = ActionRequestUtils.resolveStringParam(request, "resourcepool");
+		String folder = ActionRequestUtils.resolveStringParam(request, "folder");
+		String customization = ActionRequestUtils.resolveStringParam(request, "customization");
+		String concurrency = ActionRequestUtils.resolveStringParam(request, "concurrency");
+
+		try {
+			// Deploy the Virtual Machines
+			List<Clone> clones = deployCustomVMs(
+					server, username, password, vms, template, cluster, datastore,
+					provisionning, resourcepool, folder, customization, getConcurrency(concurrency)
+					);
+			// Indicate the result (tasks, errors & result)
+			StringBuilder tasks = new StringBuilder();
+			StringBuilder errors = new StringBuilder();
+			int failed = 0;
+			for (int i = 0; i < clones.size(); i++) {
+				Clone clone = clones.get(i);
+				if (i > 0) {
+					// keeps the positions of the VMs not started
+					tasks.append(",");
+				}
+				if (clone.task != null) {
+					tasks.append(clone.task.getMOR().val);
+				} else {
+					errors.append(clone.name).append(": ").append(clone.error.getMessage()).append("\n");
+					failed++;
+				}
+			}
+			result.add("tasks",tasks.toString());
+			result.add("errors",errors.toString());
+			result.add(DeployCustomVMs.RETURNRESULT,(clones.size() - failed) + " deployments started, " + failed + " failed");
+			// Set the return code
+			result.setReturnCode(failed == 0 ? DeployCustomVMs.SUCCESS : DeployCustomVMs.FAILURE);
+		} catch (Exception e) {
+			// Set failed return code
+			result.setReturnCode(DeployCustomVMs.FAILURE);
+			// Set Exception Stack trace
+			result.setException(StringUtils.toString(e));
+			// Set the error message
+			result.add(DeployCustomVMs.RETURNRESULT,e.getMessage());
+		}
+
+		return result;
+	}
+
+	@Override
+	public ActionTemplate getActionTemplate() {
+
+		// Create the action template
+		ActionTemplate actionTemplate = new ActionTemplate();
+
+		// Set the description
+		actionTemplate.setDescription(DeployCustomVMs.DESCRIPTION);
+
+		// Set the vCenter argument
+		RASBinding vcenterarg = RASBindingFactory.createPromptBinding("vCenter Server:", true);
+		// Set the username argument
+		RASBinding usernamearg = RASBindingFactory.createPromptBinding("vCenter User:", true);
+		// Set the password argument
+		RASBinding passwordarg = RASBindingFactory.createPromptBinding("vCenter Password:", true, true);
+		// Set the virtual machines argument
+		RASBinding vmsarg = RASBindingFactory.createPromptBinding("VMs (name,ipaddress;...):", true);
+		// Set the template argument
+		RASBinding templatearg = RASBindingFactory.createPromptBinding("Template:", true);
+		// Set the cluster argument
+		RASBinding clusterarg = RASBindingFactory.createPromptBinding("Cluster:", false);
+		// Set the datastore argument
+		RASBinding datastorearg = RASBindingFactory.createPromptBinding("Datastore:",false);
+		// Set the provisionning argument
+		RASBinding provisionningarg = RASBindingFactory.createPromptBinding("Provisionning",false);
+		// Set the resource pool argument
+		RASBinding resourcepoolarg = RASBindingFactory.createPromptBinding("Resource Pool:", false);
+		// Set the folder argument
+		RASBinding folderarg = RASBindingFactory.createPromptBinding("Folder:", false);
+		// Set the customization template argument
+		RASBinding customizationtplarg = RASBindingFactory.createPromptBinding("Customization Template:", true);
+		// Set the concurrency argument
+		RASBinding concurrencyarg = RASBindingFactory.createPromptBinding("Concurrency:", false);
+
+		// Create the parameter map
+		Map parameters = new Map();
+		parameters.add("server",vcenterarg);
+		parameters.add("username",usernamearg);
+		parameters.add("password",passwordarg);
+		parameters.add("vms",vmsarg);
+		parameters.add("template",templatearg);
+		parameters.add("cluster", clusterarg);
+		parameters.add("datastore",datastorearg);
+		parameters.add("provisionning", provisionningarg);
+		parameters.add("resourcepool",resourcepoolarg);
+		parameters.add("folder",folderarg);
+		parameters.add("customization",customizationtplarg);
+		parameters.add("concurrency",concurrencyarg);
+
+		// Set the parameter map
+		actionTemplate.setParameters(parameters);
+
+		// Create the result fields map
+		Map resultFields = new Map();
+		resultFields.add("tasks","");
+		resultFields.add("errors","");
+		resultFields.add(RETURNRESULT, "");
+		actionTemplate.setResultFields(resultFields);
+
+		// Create the response map
+		Map responses = new Map();
+		responses.add("success",String.valueOf(DeployCustomVMs.SUCCESS));
+		responses.add("failure",String.valueOf(DeployCustomVMs.FAILURE));
+
+		// Set the response map
+		actionTemplate.setResponses(responses);
+
+		return actionTemplate;
+	}
+
+	/**
+	 * Deploy a batch of virtual machines. The shared references are resolved
+	 * once (once per set of overrides), then at most concurrency clones are
+	 * started at the same time, each on a pooled session. The clones are
+	 * returned in the order of the list, with their task or error. The
+	 * clones are started from worker threads, so no more than
+	 * oovijava.workers.maxThreads of them run at once whatever concurrency.
+	 *
+	 * The clones of a batch on a datastore cluster are placed with a single
+	 * Storage DRS recommendation (see StoragePodPlacement) instead of one per
+	 * clone.
+	 */
+	public static List<Clone> deployCustomVMs(final String server, final String username, final String password,
+			String vms, final String template, final String cluster, final String datastore, final String provisionning,
+			final String resourcepool, final String folder, final String customization, int concurrency) throws Exception {
+		final List<Clone> clones = parse(vms);
+		// Resolve the shared references first, a failure fails the batch
+		final ConcurrentHashMap<String,FutureTask<DeployCustomVM.Deployment>> deployments = new ConcurrentHashMap<String,FutureTask<DeployCustomVM.Deployment>>();
+		final ConcurrentHashMap<String,FutureTask<StoragePodPlacement>> placements = new ConcurrentHashMap<String,FutureTask<StoragePodPlacement>>();
+		prepare(server, username, password, deployments, new LinkedHashMap<String,String>(), template, cluster, datastore, provisionning, resourcepool, folder, customization);
+		final boolean batch = clones.size() > 1;
+		// Start the clones from a bounded number of runners
+		final AtomicInteger next = new AtomicInteger();
+		ArrayList<Future<Void>> runners = new ArrayList<Future<Void>>();
+		for (int i = 0; i < Math.min(Math.max(1, concurrency), clones.size()); i++) {
+			runners.add(Workers.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (int index = next.getAndIncrement(); index < clones.size(); index = next.getAndIncrement()) {
+						final Clone clone = clones.get(index);
+						DatastoreReservations.Reservation reserved = null;
+						try {
+							final DeployCustomVM.Deployment deployment = prepare(server, username, password, deployments, clone.overrides,
+									template, cluster, datastore, provisionning, resourcepool, folder, customization);
+							// datastore of the pod chosen locally, null to place the clone as prepared
+							if (batch && deployment.storagePod != null) {
+								reserved = place(server, username, password, placements, clone, deployment).next();
+							}
+							final DatastoreReservations.Reservation placed = reserved;
+							clone.task = SessionPool.execute(server, username, password, new SessionTask<Task>() {
+								@Override
+								public Task run(ServiceInstance si) throws Exception {
+									return DeployCustomVM.deploy(si, deployment, clone.name, clone.ipaddress, placed);
+								}
+							});
+						} catch (Exception e) {
+							clone.error = e;
+							// the space of a clone not started is free again
+							DatastoreReservations.release(reserved);
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> runner : runners) {
+			Workers.get(runner);
+		}
+		return clones;
+	}
+
+	// Get the references of a set of overrides, resolved once
+	private static DeployCustomVM.Deployment prepare(final String server, final String username, final String password,
+			ConcurrentHashMap<String,FutureTask<DeployCustomVM.Deployment>> deployments, final java.util.Map<String,String> overrides,
+			final String template, final String cluster, final String datastore, final String provisionning,
+			final String resourcepool, final String folder, final String customization) throws Exception {
+		return once(deployments, overrides.toString(), new Callable<DeployCustomVM.Deployment>() {
+			@Override
+			public DeployCustomVM.Deployment call() throws Exception {
+				return SessionPool.execute(server, username, password, new SessionTask<DeployCustomVM.Deployment>() {
+					@Override
+					public DeployCustomVM.Deployment run(ServiceInstance si) throws Exception {
+						return DeployCustomVM.prepare(si, template, cluster,
+								override(overrides, "datastore", datastore), override(overrides, "provisionning", provisionning),
+								override(overrides, "resourcepool", resourcepool), override(overrides, "folder", folder), customization);
+					}
+				});
+			}
+		});
+	}
+
+	// Get the storage pod placement of a set of overrides, computed once
+	private static StoragePodPlacement place(final String server, final String username, final String password,
+			ConcurrentHashMap<String,FutureTask<StoragePodPlacement>> placements, final Clone clone,
+			final DeployCustomVM.Deployment deployment) throws Exception {
+		return once(placements, clone.overrides.toString(), new Callable<StoragePodPlacement>() {
+			@Override
+			public StoragePodPlacement call() throws Exception {
+				return SessionPool.execute(server, username, password, new SessionTask<StoragePodPlacement>() {
+					@Override
+					public StoragePodPlacement run(ServiceInstance si) throws Exception {
+						return StoragePodPlacement.create(si, deployment, clone.name);
+					}
+				});
+			}
+		});
+	}
+
+	// Compute a value once per key, concurrent callers waiting for it
+	private static <T> T once(ConcurrentHashMap<String,FutureTask<T>> values, String key, Callable<T> task) throws Exception {
+		FutureTask<T> future = values.get(key);
+		if (future == null) {
+			FutureTask<T> created = new FutureTask<T>(task);
+			future = values.putIfAbsent(key, created);
+			if (future == null) {
+				future = created;
+				future.run();
+			}
+		}
+		return Workers.get(future);
+	}
+
+	// Get an input, overridden or not
+	private static String override(java.util.Map<String,String> overrides, String key, String value) {
+		return overrides.containsKey(key) ? overrides.get(key) : value;
+	}
+
+	// Parse the list of virtual machines
+	private static List<Clone> parse(String vms) throws Exception {
+		ArrayList<Clone> clones = new ArrayList<Clone>();
+		for (String line : vms.split("[;\n]")) {
+			if (line.trim().length() == 0) {
+				continue;
+			}
+			String[] fields = line.split(",");
+			if (fields.length < 2) {
+				throw new Exception("Name and ip address expected: " + line.trim());
+			}
+			Clone clone = new Clone(fields[0].trim(), fields[1].trim());
+			for (int i = 2; i < fields.length; i++) {
+				String[] override = fields[i].split("=", 2);
+				String key = override[0].trim().toLowerCase();
+				if (override.length != 2 || !isOverride(key)) {
+					throw new Exception("Unsupported override for " + clone.name + ": " + fields[i].trim());
+				}
+				clone.overrides.put(key, override[1].trim());
+			}
+			clones.add(clone);
+		}
+		return clones;
+	}
+
+	// Check if an input can be overridden
+	private static boolean isOverride(String key) {
+		for (String override : OVERRIDES) {
+			if (override.equals(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Parse the concurrency input, the runners being worker threads it can't
+	// be above their number
+	private static int getConcurrency(String concurrency) throws Exception {
+		if (concurrency == null || concurrency.trim().equals("")) {
+			return Math.min(CONCURRENCY, Workers.getMaxThreads());
+		}
+		int value;
+		try {
+			value = Integer.parseInt(concurrency.trim());
+		} catch (NumberFormatException e) {
+			throw new Exception("Invalid concurrency: " + concurrency);
+		}
+		if (value < 1 || value > Workers.getMaxThreads()) {
+			throw new Exception("Concurrency must be between 1 and oovijava.workers.maxThreads (" + Workers.getMaxThreads() + "): " + concurrency);
+		}
+		return value;
+	}
+
+	/**
+	 * A virtual machine of a batch, with its task once started or its error.
+	 */
+	public static class Clone {
+		final String name;
+		final String ipaddress;
+		final LinkedHashMap<String,String> overrides = new LinkedHashMap<String,String>();
+		Task task;
+		Exception error;
+
+		Clone(String name, String ipaddress) {
+			this.name = name;
+			this.ipaddress = ipaddress;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Task getTask() {
+			return task;
+		}
+
+		public Exception getError() {
+			return error;
+		}
+	}
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		String server = null;
+		String username = null;
+		String password = null;
+		String vms = null;
+		String template = null;
+		String cluster = null;
+		String datastore = null;
+		String provisionning = null;
+		String resourcepool = null;
+		String folder = null;
+		String customization = null;
+		String concurrency = null;
+
+		BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+
+		try {
+			System.out.print("vCenter Server:");
+			server = br.readLine();
+			System.out.print("Username:");
+			username = br.readLine();
+			System.out.print("Password:");
+			password =br.readLine();
+			System.out.print("VMs (name,ipaddress;...):");
+			vms = br.readLine();
+			System.out.print("Template:");
+			template = br.readLine();
+			System.out.print("Cluster:");
+			cluster = br.readLine();
+			System.out.print("Datastore:");
+		    datastore = br.readLine();
+			System.out.print("Provisioning:");
+			provisionning = br.readLine();
+			System.out.print("Resource Pool:");
+			resourcepool = br.readLine();
+			System.out.print("Folder:");
+			folder = br.readLine();
+			System.out.print("Customization:");
+			customization = br.readLine();
+			System.out.print("Concurrency:");
+			concurrency = br.readLine();
+			System.out.println("------------------------------");
+			System.out.println("This will deploy VMs:");
+			System.out.println("vCenter: " + username + "@" + server);
+			System.out.println("VMs: " + vms);
+			System.out.println("Cluster: " + cluster);
+			System.out.println("Datastore: " + datastore);
+			System.out.println("Provisionning; " + provisionning);
+			System.out.println("Resource Pool: " + resourcepool);
+			System.out.println("Folder: " + folder);
+			System.out.println("Customization: " + customization);
+			System.out.println("------------------------------");
+			System.out.println("Confirm (y/n):");
+			String confirm = br.readLine();
+			if (confirm.equals("y")) {
+				List<Clone> clones = DeployCustomVMs.deployCustomVMs(server, username, password, vms, template, cluster, datastore,
+						provisionning, resourcepool, folder, customization, getConcurrency(concurrency));
+				for (Clone clone : clones) {
+					System.out.println(clone.name + ": " + (clone.task != null ? "Task: " + clone.task.getMOR().val : clone.error.getMessage()));
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.out.println(e.getMessage());
+		}
+	}
+
+}
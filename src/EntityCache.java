@@ -0,0 +1,146 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.vmware.vim25.*;
+import com.vmware.vim25.mo.*;
+import com.vmware.vim25.mo.util.MorUtil;
+
+/**
+ * Cache resolving managed entity names to references.
+ *
+ * The names of all the entities of a type are loaded with one retrieval and
+ * kept for a while. A cached reference is checked against the current name
+ * of the object before being used, so a renamed or destroyed entity drops
+ * the cached names of its type and they are loaded again.
+ */
+public class EntityCache {
+
+	// Time the names of a type are kept (ms)
+	private static final long TTL = Long.getLong("oovijava.cache.entityTtl", 600000L);
+
+	// Names per vCenter and type
+	private static final HashMap<String,Names> cache = new HashMap<String,Names>();
+
+	/**
+	 * Find a managed entity by type and name (case insensitive), null if not
+	 * found. Same result as InventoryNavigator.searchManagedEntity().
+	 */
+	public static ManagedEntity find(ServiceInstance si, String type, String name) throws Exception {
+		if (name == null || name.length() == 0) {
+			return null;
+		}
+		// Answer from the inventory mirror when available
+		InventoryMirror mirror = InventoryMirror.get(si);
+		if (mirror != null && mirror.isCurrent()) {
+			ManagedObjectReference mor = mirror.findByName(type, name);
+			if (mor == null) {
+				return null;
+			}
+			return MorUtil.createExactManagedEntity(si.getServerConnection(), mor);
+		}
+		if (mirror != null) {
+			// restored from a snapshot, check the hit against vCenter
+			ManagedObjectReference mor = mirror.findByName(type, name);
+			if (mor != null && isNamed(si, mor, name)) {
+				return MorUtil.createExactManagedEntity(si.getServerConnection(), mor);
+			}
+		}
+		String key = key(si, type);
+		Names names = get(key);
+		if (names != null) {
+			ManagedObjectReference mor = names.byName.get(name.toLowerCase());
+			if (mor == null) {
+				// nothing with that name when the names were loaded
+				names = null;
+			} else if (isNamed(si, mor, name)) {
+				return MorUtil.createExactManagedEntity(si.getServerConnection(), mor);
+			} else {
+				// renamed or destroyed since the names were loaded
+				invalidate(key);
+				names = null;
+			}
+		}
+		// Load the names of all the entities of the type
+		names = load(si, type);
+		synchronized (cache) {
+			cache.put(key, names);
+		}
+		ManagedObjectReference mor = names.byName.get(name.toLowerCase());
+		if (mor == null) {
+			return null;
+		}
+		return MorUtil.createExactManagedEntity(si.getServerConnection(), mor);
+	}
+
+	/**
+	 * Forget the cached names of a type on a vCenter.
+	 */
+	public static void invalidate(ServiceInstance si, String type) {
+		invalidate(key(si, type));
+	}
+
+	/**
+	 * Forget the cached names of a type on a vCenter host.
+	 */
+	public static void invalidate(String host, String type) {
+		invalidate(host + "|" + type);
+	}
+
+	// Get the cached names if not expired
+	private static Names get(String key) {
+		synchronized (cache) {
+			Names names = cache.get(key);
+			if (names != null && System.currentTimeMillis() - names.loaded > TTL) {
+				cache.remove(key);
+				names = null;
+			}
+			return names;
+		}
+	}
+
+	// Forget cached names
+	private static void invalidate(String key) {
+		synchronized (cache) {
+			cache.remove(key);
+		}
+	}
+
+	// Check that an object still exists with the given name
+	private static boolean isNamed(ServiceInstance si, ManagedObjectReference mor, String name) throws Exception {
+		ObjectContent oc = PropertyRetriever.retrieveObject(si, mor, new String[] { "name" });
+		if (oc == null) {
+			return false;
+		}
+		Object current = PropertyRetriever.getValue(oc, "name");
+		return current != null && name.equalsIgnoreCase(current.toString());
+	}
+
+	// Retrieve the names of all the entities of a type
+	private static Names load(ServiceInstance si, String type) throws Exception {
+		Names names = new Names();
+		ArrayList<ObjectContent> ocs = PropertyRetriever.retrieveByType(si, si.getRootFolder(), type, new String[] { "name" }, true);
+		for (ObjectContent oc : ocs) {
+			Object name = PropertyRetriever.getValue(oc, "name");
+			if (name == null) {
+				continue;
+			}
+			// keep the first match as the inventory navigator does
+			String lower = name.toString().toLowerCase();
+			if (!names.byName.containsKey(lower)) {
+				names.byName.put(lower, oc.getObj());
+			}
+		}
+		return names;
+	}
+
+	// Cache key of a type on a vCenter
+	private static String key(ServiceInstance si, String type) {
+		return si.getServerConnection().getUrl().getHost() + "|" + type;
+	}
+
+	// Names of the entities of a type
+	private static class Names {
+		final long loaded = System.currentTimeMillis();
+		final HashMap<String,ManagedObjectReference> byName = new HashMap<String,ManagedObjectReference>();
+	}
+}
@@ -1,5 +1,3 @@
-import java.net.URL;
-
 import com.google.gson.Gson;
 
 import com.iconclude.webservices.extensions.java.interfaces.*;
@@ -67,12 +65,17 @@ public class GetCustomizationSpecs implements IAction {
 	}
 
 	public static CustomizationSpecInfo[] getCustomizationSpecs(String server, String username, String password) throws Exception {
-		// Get the vCenter URL
-		URL url = new URL("https://" + server + "/sdk");
-		// Connect to vCenter
-		ServiceInstance si = new ServiceInstance(url,username,password,true);
+		// Run on a pooled vCenter session, logging in again if it expired
+		return SessionPool.execute(server, username, password, new SessionTask<CustomizationSpecInfo[]>() {
+			@Override
+			public CustomizationSpecInfo[] run(ServiceInstance si) throws Exception {
+				return getCustomizationSpecs(si);
+			}
+		});
+	}
+
+	public static CustomizationSpecInfo[] getCustomizationSpecs(ServiceInstance si) throws Exception {
 		CustomizationSpecInfo[] infos = si.getCustomizationSpecManager().getInfo();
-		si.getServerConnection().logout();
 		return infos;
 	}
 
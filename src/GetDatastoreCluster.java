@@ -1,6 +1,5 @@
-import java.net.URL;
-
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
@@ -10,7 +9,10 @@ import com.iconclude.webservices.extensions.java.types.*;
 import com.iconclude.webservices.extensions.java.util.*;
 import com.opsware.pas.content.commons.util.StringUtils;
 import com.vmware.vim25.mo.*;
-import com.vmware.vim25.DatastoreSummary;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
 import com.vmware.vim25.StoragePodSummary;
 
 public class GetDatastoreCluster implements IAction {
@@ -26,6 +28,7 @@ public class GetDatastoreCluster implements IAction {
 			+"-Password: vCenter password\n"
 			+"-name: Datastore Cluster Name\n"
             +"-folder: Folder in wich to search for the datastore cluster\n"
+			+"-size: space to reserve on the returned datastore for a deployment (GB)\n"
 			+"-columnSeparator: column separator\n"
 			+"-rowSeparator: raw separator\n" 
 			+"\n"
@@ -55,12 +58,13 @@ public class GetDatastoreCluster implements IAction {
 		String password = ActionRequestUtils.resolveStringParam(request, "password");
 		String name = ActionRequestUtils.resolveStringParam(request, "name");
 		String folder = ActionRequestUtils.resolveStringParam(request, "folder");
+		String size = ActionRequestUtils.resolveStringParam(request, "size");
 		String columnSeparator = ActionRequestUtils.resolveStringParam(request, "columnSeparator"); 
 		String rowSeparator = ActionRequestUtils.resolveStringParam(request, "rowSeparator");
 		
 		try {
 			// Get the Guest informations
-			String pods = getDatastoreCluster(server, username, password, name, folder, columnSeparator, rowSeparator);
+			String pods = getDatastoreCluster(server, username, password, name, folder, size, columnSeparator, rowSeparator);
 			// Indicate the result (task & result)
 			result.add("storagepods",pods);
 			result.add(GetDatastoreCluster.RETURNRESULT,"storage cluster found.");
@@ -79,16 +83,23 @@ public class GetDatastoreCluster implements IAction {
 	}
 
     public static String getDatastoreCluster(String server, String username, String password,
-			String name, String folder, String columnSeparator, String rowSeparator) throws Exception {
+			final String name, final String folder, final String size, final String columnSeparator, final String rowSeparator) throws Exception {
+		// Run on a pooled vCenter session, logging in again if it expired
+		return SessionPool.execute(server, username, password, new SessionTask<String>() {
+			@Override
+			public String run(ServiceInstance si) throws Exception {
+				return getDatastoreCluster(si, name, folder, size, columnSeparator, rowSeparator);
+			}
+		});
+	}
+
+    public static String getDatastoreCluster(ServiceInstance si,
+			String name, String folder, String size, String columnSeparator, String rowSeparator) throws Exception {
 		// set default values
 		if (name.isEmpty()) { name = ".*"; }
 		//prepare folder - remove starting and trailing '/'
 		folder = folder.replaceAll("/$|^/", "");
 		String[] folders = folder.split("/");
-		// Get the vCenter URL
-		URL url = new URL("https://" + server + "/sdk");
-		// Connect to vCenter
-		ServiceInstance si = new ServiceInstance(url,username,password,true);
 		// Get the root Folder
 		ManagedEntity rootFolder = si.getRootFolder();
 		// move the rootFolder to desired location
@@ -126,114 +137,110 @@ public class GetDatastoreCluster implements IAction {
 				}
 			}
 		}
-		// Get the inventory navigator
-		InventoryNavigator navigator = new InventoryNavigator(rootFolder);
-		// Get proper references for variables on the deploy task.
-		// Search for storage pods in folder
-		//ManagedEntity[] pods = navigator.searchManagedEntities("StoragePod");
-		//More precise search
-		String[][] typeinfo = new String[1][5];
-		typeinfo[0][0] = "StoragePod";
-		typeinfo[0][1] = "name";
-		typeinfo[0][2] = "childEntity";
-		typeinfo[0][3] = "summary.freeSpace";
-		typeinfo[0][4] = "summary.capacity";
-		ManagedEntity[] pods = navigator.searchManagedEntities(typeinfo,true);
-		if (pods.length == 0) {
-			throw new Exception("No data store clusters found.");
-		}
-		// collect matching storage pods
-		HashSet<StoragePod> matchedpods = new HashSet<StoragePod>();
-		for(ManagedEntity pod: pods) {
-			if (pod instanceof StoragePod) {
-				if (pod.getName().matches(name)) {
-					matchedpods.add((StoragePod)pod);
+		// Retrieve the storage pods and their datastores with a single
+		// PropertyCollector retrieval
+		ObjectSpec os = new ObjectSpec();
+		os.setObj(rootFolder.getMOR());
+		os.setSkip(Boolean.FALSE);
+		os.setSelectSet(InventoryTraversal.build("Datastore"));
+		PropertyFilterSpec spec = new PropertyFilterSpec();
+		spec.setObjectSet(new ObjectSpec[] { os });
+		spec.setPropSet(new PropertySpec[] {
+				buildPropertySpec("StoragePod", "name", "parent", "summary"),
+				buildPropertySpec("Datastore", "name", "parent", "summary.freeSpace", "summary.capacity", "summary.maintenanceMode", "summary.accessible") });
+		ArrayList<ObjectContent> pods = new ArrayList<ObjectContent>();
+		HashMap<String,ArrayList<ObjectContent>> podDatastores = new HashMap<String,ArrayList<ObjectContent>>();
+		for (ObjectContent oc : PropertyRetriever.retrieve(si, spec)) {
+			if ("StoragePod".equals(oc.getObj().getType())) {
+				pods.add(oc);
+			} else if ("Datastore".equals(oc.getObj().getType())) {
+				// group the datastores by storage pod
+				Object parent = PropertyRetriever.getValue(oc, "parent");
+				if (parent != null) {
+					ArrayList<ObjectContent> datastores = podDatastores.get(parent.toString());
+					if (datastores == null) {
+						datastores = new ArrayList<ObjectContent>();
+						podDatastores.put(parent.toString(), datastores);
+					}
+					datastores.add(oc);
 				}
 			}
 		}
+		if (pods.size() == 0) {
+			throw new Exception("No data store clusters found.");
+		}
+		// space to reserve (bytes)
+		long reserve = 0;
+		if (size != null && !size.isEmpty()) {
+			reserve = (long) (Double.parseDouble(size) * 1024 * 1024 * 1024);
+		}
+		String host = si.getServerConnection().getUrl().getHost();
 		// prepare the resulting table
-		String strresult  = "";
-		for(StoragePod pod: matchedpods) {
-			// get summary
-		    StoragePodSummary summary = pod.getSummary();
-			// get the datastore with the largest free space percentage
-			Datastore largestFree = null;
-			double largestFreePc = 0.0;
-			long largestFreeSpace = 0;
-			//ManagedEntity[] childs = pod.getChildEntity();
-			//Gather informations about child Datastores
-			String[][] dstypeinfo = new String[1][6];
-			dstypeinfo[0][0] = "Datastore";
-			dstypeinfo[0][1] = "name";
-			dstypeinfo[0][2] = "summary.freeSpace";
-			dstypeinfo[0][3] = "summary.capacity";
-			dstypeinfo[0][4] = "summary.maintenanceMode";
-			dstypeinfo[0][5] = "summary.accessible";
-			// Get the inventory navigator
-			InventoryNavigator dsnavigator = new InventoryNavigator(pod);
-			ManagedEntity[] ds = dsnavigator.searchManagedEntities(dstypeinfo,true);
-			for(ManagedEntity child: ds) {
-				// find child object of type datastore
-				if (child instanceof Datastore) {
-					Datastore toCheck = (Datastore)child;
-					// get the summary
-					DatastoreSummary toCheckSummary = toCheck.getSummary();
-					// check if accessible otherwise ignore
-					if (!toCheckSummary.accessible) { 
-						System.out.println("Datastore not accessible");
-						continue;	
-					}
-					// check if in maintenance otherwise ignore
-					if (!"normal".equals(toCheckSummary.getMaintenanceMode())) {
-						System.out.println("Datastore state: " + toCheckSummary.getMaintenanceMode());
-						continue;
-					}
-					float toCheckFreePc = toCheckSummary.getFreeSpace() / toCheckSummary.getCapacity();
-					if (largestFree == null) {
-						largestFree = toCheck;
-						largestFreePc = toCheckFreePc;
-						largestFreeSpace = toCheckSummary.getFreeSpace();
-						continue;
-					}
-					if (largestFreePc < toCheckFreePc) {
-						largestFree = toCheck;
-						largestFreePc = toCheckFreePc;
-						largestFreeSpace = toCheckSummary.getFreeSpace();
-					}
-				}
+		StringBuilder strresult = new StringBuilder();
+		for(ObjectContent pod: pods) {
+			String podName = String.valueOf(PropertyRetriever.getValue(pod, "name"));
+			if (!podName.matches(name)) {
+				continue;
 			}
-			if (largestFree == null) {
+			// get summary
+		    StoragePodSummary summary = (StoragePodSummary) PropertyRetriever.getValue(pod, "summary");
+			// candidate datastores
+			ArrayList<DatastoreReservations.Candidate> candidates = new ArrayList<DatastoreReservations.Candidate>();
+			ArrayList<ObjectContent> ds = podDatastores.get(pod.getObj().toString());
+			if (ds == null) {
 				continue;
 			}
-			// generate the path to simplify further searches
-			String path = "";
-			ManagedEntity mo = pod;
-			while (mo!=null) {
-				path =  mo.getName() + "/" + path;
-				if (mo instanceof Datacenter) {
-					break;
+			for(ObjectContent toCheck: ds) {
+				// check if accessible otherwise ignore
+				if (!Boolean.TRUE.equals(PropertyRetriever.getValue(toCheck, "summary.accessible"))) { 
+					System.out.println("Datastore not accessible");
+					continue;	
+				}
+				// check if in maintenance otherwise ignore
+				Object maintenanceMode = PropertyRetriever.getValue(toCheck, "summary.maintenanceMode");
+				if (!"normal".equals(maintenanceMode)) {
+					System.out.println("Datastore state: " + maintenanceMode);
+					continue;
 				}
-				mo = mo.getParent();
+				long freeSpace = ((Number) PropertyRetriever.getValue(toCheck, "summary.freeSpace")).longValue();
+				long capacity = ((Number) PropertyRetriever.getValue(toCheck, "summary.capacity")).longValue();
+				candidates.add(new DatastoreReservations.Candidate(toCheck.getObj(), String.valueOf(PropertyRetriever.getValue(toCheck, "name")), freeSpace, capacity));
+			}
+			// get the datastore with the largest free space percentage, space
+			// handed out to recent deployments deducted. The datastore of the
+			// first returned cluster is reserved for the deployment.
+			DatastoreReservations.Candidate largestFree;
+			if (reserve > 0 && strresult.length() == 0) {
+				largestFree = DatastoreReservations.selectAndReserve(host, candidates, reserve);
+			} else {
+				largestFree = DatastoreReservations.select(host, candidates, reserve);
 			}
-			path = path.replaceAll("/$|^/","");
 			if (largestFree == null) {
 				continue;
 			}
-			strresult += rowSeparator 
-			    + "moref:" + pod.getMOR().toString() + columnSeparator 
-				+ "name:" + pod.getName() + columnSeparator 
+			// generate the path to simplify further searches
+			String path = InventoryPaths.getPath(si, pod);
+			if (strresult.length() > 0) {
+				strresult.append(rowSeparator);
+			}
+			strresult.append("moref:" + pod.getObj().toString() + columnSeparator 
+				+ "name:" + podName + columnSeparator 
 				+ "size:" + summary.getCapacity() + columnSeparator 
 				+ "free:" + summary.getFreeSpace() + columnSeparator
-				+ "largestfree:" + largestFreeSpace + columnSeparator
+				+ "largestfree:" + largestFree.getFreeSpace() + columnSeparator
 				+ "datastore:" + largestFree.getMOR().toString() + columnSeparator
 				+ "datastorename:" + largestFree.getName() + columnSeparator
-				+ "path:" + path;
+				+ "path:" + path);
 		}
-		// strip extra rowseparators
-		strresult = strresult.replaceAll(rowSeparator + "$|^" + rowSeparator, "");
-		//logout
-		si.getServerConnection().logout();
-		return strresult;
+		return strresult.toString();
+    }
+
+    // Build a property spec for a type
+    private static PropertySpec buildPropertySpec(String type, String... paths) {
+		PropertySpec ps = new PropertySpec();
+		ps.setType(type);
+		ps.setPathSet(paths);
+		return ps;
     }
 
 	@Override
@@ -255,6 +262,8 @@ public class GetDatastoreCluster implements IAction {
 		RASBinding namearg = RASBindingFactory.createPromptBinding("Datastore Clusetr Name:", true);
 		// Set the name argument
 		RASBinding folderarg = RASBindingFactory.createPromptBinding("Folder Name:", true);
+		// Set the size argument
+		RASBinding sizearg = RASBindingFactory.createPromptBinding("Size to reserve (GB):", false);
 		// Set the column separator argument
 		RASBinding columnSeparatorarg = RASBindingFactory.createPromptBinding("Column separator:", true);
 		// Set the row separator argument
@@ -267,6 +276,7 @@ public class GetDatastoreCluster implements IAction {
 		parameters.add("password",passwordarg);
 		parameters.add("name",namearg);
 		parameters.add("folder",folderarg);
+		parameters.add("size",sizearg);
 		parameters.add("columnSeparator",columnSeparatorarg);
 		parameters.add("rowSeparator",rowSeparatorarg);
 		
@@ -320,7 +330,7 @@ public class GetDatastoreCluster implements IAction {
 			System.out.print("Confirm (y/n):");
 			String confirm = br.readLine();
 			if (confirm.equals("y")) {
-				String objects = getDatastoreCluster(server,username,password,name,folder,";","\n");
+				String objects = getDatastoreCluster(server,username,password,name,folder,"",";","\n");
          	    System.out.println("Datastore clusters:");
                 System.out.println(objects);
 			}
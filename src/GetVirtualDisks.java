@@ -1,5 +1,4 @@
 
-import java.net.URL;
 import java.util.ArrayList;
 
 import com.google.gson.Gson;
@@ -116,18 +115,19 @@ public class GetVirtualDisks implements IAction {
 	}
 
 	public static VirtualDisk[] getVirtualDisks(String server, String username,
-			String password, String name) throws Exception {
-		// Get the vCenter URL
-		URL url = new URL("https://" + server + "/sdk");
-		// Connect to vCenter
-		ServiceInstance si = new ServiceInstance(url,username,password,true);
-		// Get the root Folder
-		Folder rootFolder = si.getRootFolder();
-		// Get the inventory navigator
-		InventoryNavigator navigator = new InventoryNavigator(rootFolder);
-		// Get proper references for variables on the deploy task.
-		// Search for specified template
-		VirtualMachine vm = (VirtualMachine) navigator.searchManagedEntity("VirtualMachine",name);
+			String password, final String name) throws Exception {
+		// Run on a pooled vCenter session, logging in again if it expired
+		return SessionPool.execute(server, username, password, new SessionTask<VirtualDisk[]>() {
+			@Override
+			public VirtualDisk[] run(ServiceInstance si) throws Exception {
+				return getVirtualDisks(si, name);
+			}
+		});
+	}
+
+	public static VirtualDisk[] getVirtualDisks(ServiceInstance si, String name) throws Exception {
+		// Resolve the virtual machine through the name cache
+		VirtualMachine vm = (VirtualMachine) EntityCache.find(si, "VirtualMachine", name);
 		if (vm==null) {
 			throw new Exception("Virtual Machine not found.");
 		}
@@ -142,7 +142,6 @@ public class GetVirtualDisks implements IAction {
 				virtualDisks.add((VirtualDisk)device);
 			}
 		}
-		si.getServerConnection().logout();
 		VirtualDisk[] disks = new VirtualDisk[virtualDisks.size()];
 		for (int i = 0; i < virtualDisks.size();i++) {
 			disks[i] = virtualDisks.get(i);
@@ -0,0 +1,615 @@
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import com.vmware.vim25.*;
+import com.vmware.vim25.mo.*;
+
+/**
+ * In memory mirror of the inventory of a vCenter.
+ *
+ * A background thread registers one PropertyCollector filter on every
+ * managed entity (name, parent and the configured properties). The first
+ * WaitForUpdatesEx call returns the whole inventory and the next ones only
+ * the changes, so the mirror stays current with a single long poll per
+ * vCenter. Read only lookups are answered from memory once the initial
+ * synchronization is done.
+ *
+ * The names and parents can be saved to a snapshot file
+ * (oovijava.mirror.snapshotDir). After a restart the snapshot is loaded when
+ * the mirror is first used and answers the name lookups, each hit being
+ * checked against vCenter, until the synchronization in the background is
+ * done. PropertyCollector versions are only valid for the collector that
+ * returned them so the snapshot can't resume the change stream; the
+ * background load replaces its content.
+ *
+ * A mirror holds what its user is allowed to see: there is one per vCenter
+ * and user, only served to sessions of that user with the same password. A
+ * mirror whose login is refused stops, the next session of the user starts
+ * a new one with its own password.
+ *
+ * The mirror is disabled by default (oovijava.mirror.enabled).
+ */
+public class InventoryMirror {
+
+	// Mirror enabled witness
+	private static final boolean ENABLED = Boolean.getBoolean("oovijava.mirror.enabled");
+
+	// Extra mirrored properties, "Type:path" separated by ','
+	private static final String PROPERTIES = System.getProperty("oovijava.mirror.properties", "");
+
+	// Maximum duration of a long poll (s)
+	private static final int WAIT_SECONDS = Integer.getInteger("oovijava.mirror.waitSeconds", 300);
+
+	// Delay before synchronizing again after an error (ms)
+	private static final long RETRY_DELAY = Long.getLong("oovijava.mirror.retryDelay", 30000L);
+
+	// Directory of the snapshot files, none if not set
+	private static final String SNAPSHOT_DIR = System.getProperty("oovijava.mirror.snapshotDir");
+
+	// Minimum delay between two snapshots (ms)
+	private static final long SNAPSHOT_INTERVAL = Long.getLong("oovijava.mirror.snapshotInterval", 600000L);
+
+	// Properties always mirrored
+	private static final String[] BASE_PROPERTIES = new String[] { "name", "parent" };
+
+	// Mirrors per vCenter and user
+	private static final HashMap<String,InventoryMirror> mirrors = new HashMap<String,InventoryMirror>();
+
+	// Type hierarchy checks already done
+	private static final ConcurrentHashMap<String,Boolean> typeChecks = new ConcurrentHashMap<String,Boolean>();
+
+	private final String server;
+	private final String username;
+	private final String password;
+
+	// Extra mirrored properties per type
+	private final HashMap<String,ArrayList<String>> extraProperties = new HashMap<String,ArrayList<String>>();
+
+	// Mirrored entities by type and value of their reference, indexed by name
+	private volatile Entities entries = new Entities();
+
+	// Initial synchronization done and mirror current
+	private volatile boolean ready = false;
+
+	// Entities restored from a snapshot and not synchronized yet
+	private volatile boolean restored = false;
+
+	// Login refused, the synchronization is over
+	private volatile boolean stopped = false;
+
+	// Snapshot restored and synchronization started, guarded by the mirror
+	private boolean started = false;
+
+	// Last snapshot time
+	private long saved = 0;
+
+	private InventoryMirror(String server, String username, String password) {
+		this.server = server;
+		this.username = username;
+		this.password = password;
+		for (String property : PROPERTIES.split(",")) {
+			String[] parts = property.trim().split(":");
+			if (parts.length != 2) {
+				continue;
+			}
+			ArrayList<String> props = extraProperties.get(parts[0]);
+			if (props == null) {
+				props = new ArrayList<String>();
+				extraProperties.put(parts[0], props);
+			}
+			props.add(parts[1]);
+		}
+	}
+
+	/**
+	 * Get the mirror of the vCenter and user of a pooled session, null if
+	 * mirroring is disabled, the mirror was started with another password or
+	 * it has neither been synchronized nor restored from a snapshot yet. The
+	 * mirror is started on first use, its snapshot being loaded before
+	 * returning.
+	 */
+	public static InventoryMirror get(ServiceInstance si) {
+		if (!ENABLED) {
+			return null;
+		}
+		String[] credentials = SessionPool.getCredentials(si);
+		if (credentials == null) {
+			return null;
+		}
+		String key = credentials[0] + "|" + credentials[1];
+		InventoryMirror mirror;
+		synchronized (mirrors) {
+			mirror = mirrors.get(key);
+			if (mirror == null || mirror.stopped) {
+				// the session logged in with its password, unlike the stopped mirror
+				mirror = new InventoryMirror(credentials[0], credentials[1], credentials[2]);
+				mirrors.put(key, mirror);
+			}
+		}
+		// outside of the lock of all the mirrors, the callers of this one
+		// waiting for its snapshot
+		mirror.startOnce();
+		if (!mirror.password.equals(credentials[2])) {
+			// built with another password of the user, not trusted
+			return null;
+		}
+		return mirror.ready || mirror.restored ? mirror : null;
+	}
+
+	/**
+	 * Check if the mirror is synchronized with vCenter. Otherwise its entities
+	 * come from a snapshot and may be stale.
+	 */
+	public boolean isCurrent() {
+		return ready;
+	}
+
+	/**
+	 * Find an entity by type and name (case insensitive), null if not found.
+	 * When several entities have this name, the one of the first type in
+	 * alphabetical order with the lowest reference value (the oldest) is
+	 * returned.
+	 */
+	public ManagedObjectReference findByName(String type, String name) {
+		return entries.findByName(type, name);
+	}
+
+	/**
+	 * Get the mirrored object contents of the entities of a type recursively
+	 * under a root folder or datacenter (the root folder if null). Returns
+	 * null when the mirror can't answer (properties not mirrored or root not
+	 * supported), the caller then asks vCenter.
+	 */
+	public ObjectContent[] search(String type, String[] props, ManagedObjectReference root) {
+		if (root != null && !("Folder".equals(root.getType()) || "Datacenter".equals(root.getType()))) {
+			return null;
+		}
+		ArrayList<ObjectContent> contents = new ArrayList<ObjectContent>();
+		for (Entry entry : entries.values()) {
+			if (!isOfType(entry.mor.getType(), type)) {
+				continue;
+			}
+			if (!isMirrored(entry.mor.getType(), props)) {
+				return null;
+			}
+			if (root != null && !isUnder(entry, root)) {
+				continue;
+			}
+			contents.add(entry.toObjectContent(props));
+		}
+		return contents.toArray(new ObjectContent[contents.size()]);
+	}
+
+	/**
+	 * Get a mirrored entity, null if unknown.
+	 */
+	public Entry getEntry(ManagedObjectReference mor) {
+		return entries.get(key(mor));
+	}
+
+	// Check if all the properties are mirrored for a type
+	private boolean isMirrored(String type, String[] props) {
+		for (String prop : props) {
+			boolean found = false;
+			for (String base : BASE_PROPERTIES) {
+				found |= base.equals(prop);
+			}
+			for (Map.Entry<String,ArrayList<String>> extra : extraProperties.entrySet()) {
+				found |= isOfType(type, extra.getKey()) && extra.getValue().contains(prop);
+			}
+			if (!found) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Check if an entity is the root or one of its descendants
+	private boolean isUnder(Entry entry, ManagedObjectReference root) {
+		while (entry != null) {
+			if (entry.mor.getVal().equals(root.getVal()) && entry.mor.getType().equals(root.getType())) {
+				return true;
+			}
+			ManagedObjectReference parent = entry.getParent();
+			entry = parent == null ? null : entries.get(key(parent));
+		}
+		return false;
+	}
+
+	// Restore the snapshot then start the synchronization, once
+	private synchronized void startOnce() {
+		if (!started) {
+			started = true;
+			restore();
+			start();
+		}
+	}
+
+	// Start the synchronization thread
+	private void start() {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						synchronize();
+					} catch (Exception e) {
+						if (isInvalidLogin(e)) {
+							// never retried with a refused password
+							stopped = true;
+							ready = false;
+							restored = false;
+							return;
+						}
+						// synchronize again from scratch
+					}
+					ready = false;
+					try {
+						Thread.sleep(RETRY_DELAY);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "oovijava-mirror-" + server + "-" + username);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	// Load the entities of the snapshot file if any
+	private void restore() {
+		File file = getSnapshotFile();
+		if (file == null) {
+			return;
+		}
+		try {
+			InventorySnapshot snapshot = InventorySnapshot.load(file);
+			if (snapshot == null) {
+				return;
+			}
+			Entities restoring = new Entities();
+			for (Entry entry : snapshot.getEntries()) {
+				restoring.put(entry);
+			}
+			entries = restoring;
+			restored = true;
+		} catch (Exception e) {
+			// unreadable snapshot, wait for the synchronization
+		}
+	}
+
+	// Save the entities to the snapshot file if due
+	private void save() {
+		File file = getSnapshotFile();
+		if (file == null || System.currentTimeMillis() - saved < SNAPSHOT_INTERVAL) {
+			return;
+		}
+		saved = System.currentTimeMillis();
+		try {
+			file.getParentFile().mkdirs();
+			InventorySnapshot.save(file, entries.values());
+		} catch (Exception e) {
+			// try again at the next interval
+		}
+	}
+
+	// Snapshot file of the vCenter, null if snapshots are disabled
+	private File getSnapshotFile() {
+		if (SNAPSHOT_DIR == null) {
+			return null;
+		}
+		return new File(SNAPSHOT_DIR, (server + "_" + username).replaceAll("[^A-Za-z0-9._-]", "_") + ".snapshot");
+	}
+
+	// Check if vCenter refused the login
+	private static boolean isInvalidLogin(Throwable e) {
+		while (e != null) {
+			if (e instanceof InvalidLogin) {
+				return true;
+			}
+			e = e.getCause();
+		}
+		return false;
+	}
+
+	// Load the inventory and follow its changes until an error occurs
+	private void synchronize() throws Exception {
+		ServiceInstance si = SessionPool.connect(server, username, password);
+		PropertyCollector pc = null;
+		try {
+			// private collector so the long poll does not block other callers
+			pc = si.getPropertyCollector().createPropertyCollector();
+			ContainerView view = si.getViewManager().createContainerView(si.getRootFolder(), new String[] { "ManagedEntity" }, true);
+			pc.createFilter(buildFilter(view.getMOR()), true);
+			// the container view does not contain the root folder itself
+			Entities loading = new Entities();
+			ManagedObjectReference root = si.getRootFolder().getMOR();
+			ObjectContent rootContent = PropertyRetriever.retrieveObject(si, root, BASE_PROPERTIES);
+			Entry rootEntry = new Entry(root, new HashMap<String,Object>());
+			rootEntry.props.put("name", PropertyRetriever.getValue(rootContent, "name"));
+			loading.put(rootEntry);
+			WaitOptions options = new WaitOptions();
+			options.setMaxWaitSeconds(WAIT_SECONDS);
+			options.setMaxObjectUpdates(PropertyRetriever.PAGE_SIZE);
+			// first calls return the whole inventory, then only the changes
+			String version = "";
+			boolean initial = true;
+			while (true) {
+				UpdateSet updates = pc.waitForUpdatesEx(version, options);
+				if (updates == null) {
+					// nothing changed during the long poll
+					continue;
+				}
+				version = updates.getVersion();
+				apply(initial ? loading : entries, updates, !initial);
+				if (initial && !Boolean.TRUE.equals(updates.getTruncated())) {
+					// replaces the snapshot, entities gone since are dropped
+					entries = loading;
+					initial = false;
+					ready = true;
+					restored = false;
+					saved = 0;
+				}
+				if (!initial) {
+					save();
+				}
+			}
+		} finally {
+			ready = false;
+			if (pc != null) {
+				try {
+					pc.destroyPropertyCollector();
+				} catch (Exception e) {
+					// the session is going away anyway
+				}
+			}
+			try {
+				si.getServerConnection().logout();
+			} catch (Exception e) {
+				// nothing to do
+			}
+		}
+	}
+
+	// Build the filter on all the managed entities of the view
+	private PropertyFilterSpec buildFilter(ManagedObjectReference view) {
+		PropertyFilterSpec spec = PropertyRetriever.buildViewFilter(view, "ManagedEntity", BASE_PROPERTIES);
+		ArrayList<PropertySpec> propSet = new ArrayList<PropertySpec>();
+		for (PropertySpec ps : spec.getPropSet()) {
+			propSet.add(ps);
+		}
+		for (Map.Entry<String,ArrayList<String>> extra : extraProperties.entrySet()) {
+			PropertySpec ps = new PropertySpec();
+			ps.setType(extra.getKey());
+			ps.setPathSet(extra.getValue().toArray(new String[extra.getValue().size()]));
+			propSet.add(ps);
+		}
+		spec.setPropSet(propSet.toArray(new PropertySpec[propSet.size()]));
+		return spec;
+	}
+
+	// Apply an update set to the mirrored entities
+	private void apply(Entities target, UpdateSet updates, boolean notify) {
+		if (updates.getFilterSet() == null) {
+			return;
+		}
+		for (PropertyFilterUpdate filterUpdate : updates.getFilterSet()) {
+			if (filterUpdate.getObjectSet() == null) {
+				continue;
+			}
+			for (ObjectUpdate update : filterUpdate.getObjectSet()) {
+				String key = key(update.getObj());
+				Entry previous = target.get(key);
+				if (update.getKind() == ObjectUpdateKind.leave) {
+					// destroyed or moved out of the inventory
+					target.remove(previous);
+					if (notify) {
+						changed(update.getObj());
+					}
+					continue;
+				}
+				// copy so that readers never see a half applied change
+				HashMap<String,Object> props = new HashMap<String,Object>();
+				if (previous != null) {
+					props.putAll(previous.props);
+				}
+				if (update.getChangeSet() != null) {
+					for (PropertyChange change : update.getChangeSet()) {
+						if (change.getOp() == PropertyChangeOp.remove || change.getOp() == PropertyChangeOp.indirectRemove) {
+							props.remove(change.getName());
+						} else {
+							props.put(change.getName(), change.getVal());
+						}
+					}
+				}
+				Entry entry = new Entry(update.getObj(), props);
+				target.put(entry);
+				if (notify && previous != null && !String.valueOf(previous.getName()).equals(String.valueOf(entry.getName()))) {
+					// renamed
+					changed(update.getObj());
+				}
+			}
+		}
+	}
+
+	// Tell the name cache that an entity was renamed or destroyed
+	private void changed(ManagedObjectReference mor) {
+		try {
+			EntityCache.invalidate(new URL("https://" + server + "/sdk").getHost(), mor.getType());
+		} catch (Exception e) {
+			// nothing cached for an invalid server
+		}
+	}
+
+	// Order of the reference values, vm-9 before vm-10
+	private static final Comparator<String> REFERENCE_ORDER = new Comparator<String>() {
+		@Override
+		public int compare(String v1, String v2) {
+			return v1.length() != v2.length() ? v1.length() - v2.length() : v1.compareTo(v2);
+		}
+	};
+
+	// Key of a reference in the mirror
+	private static String key(ManagedObjectReference mor) {
+		return mor.getType() + ":" + mor.getVal();
+	}
+
+	/**
+	 * Check if a managed object type is or extends another one.
+	 */
+	public static boolean isOfType(String type, String wanted) {
+		if (type.equals(wanted) || "ManagedEntity".equals(wanted)) {
+			return true;
+		}
+		String check = type + ">" + wanted;
+		Boolean result = typeChecks.get(check);
+		if (result == null) {
+			try {
+				Class<?> wantedClass = Class.forName("com.vmware.vim25.mo." + wanted);
+				Class<?> typeClass = Class.forName("com.vmware.vim25.mo." + type);
+				result = wantedClass.isAssignableFrom(typeClass);
+			} catch (ClassNotFoundException e) {
+				result = Boolean.FALSE;
+			}
+			typeChecks.put(check, result);
+		}
+		return result;
+	}
+
+	// Mirrored entities by key, and their reference values by type and lower
+	// case name. Only the synchronization thread modifies them.
+	private static class Entities {
+		private final ConcurrentHashMap<String,Entry> byKey = new ConcurrentHashMap<String,Entry>();
+		private final ConcurrentHashMap<String,ConcurrentHashMap<String,ConcurrentSkipListSet<String>>> byName =
+				new ConcurrentHashMap<String,ConcurrentHashMap<String,ConcurrentSkipListSet<String>>>();
+
+		Entry get(String key) {
+			return byKey.get(key);
+		}
+
+		Collection<Entry> values() {
+			return byKey.values();
+		}
+
+		// Add or replace an entity
+		void put(Entry entry) {
+			Entry previous = byKey.put(key(entry.mor), entry);
+			if (previous != null) {
+				unindex(previous);
+			}
+			String name = entry.getName();
+			if (name == null) {
+				return;
+			}
+			ConcurrentHashMap<String,ConcurrentSkipListSet<String>> names = byName.get(entry.mor.getType());
+			if (names == null) {
+				names = new ConcurrentHashMap<String,ConcurrentSkipListSet<String>>();
+				byName.put(entry.mor.getType(), names);
+			}
+			ConcurrentSkipListSet<String> vals = names.get(name.toLowerCase());
+			if (vals == null) {
+				vals = new ConcurrentSkipListSet<String>(REFERENCE_ORDER);
+				names.put(name.toLowerCase(), vals);
+			}
+			vals.add(entry.mor.getVal());
+		}
+
+		// Remove an entity if known
+		void remove(Entry entry) {
+			if (entry != null && byKey.remove(key(entry.mor)) != null) {
+				unindex(entry);
+			}
+		}
+
+		private void unindex(Entry entry) {
+			ConcurrentHashMap<String,ConcurrentSkipListSet<String>> names = byName.get(entry.mor.getType());
+			if (names == null || entry.getName() == null) {
+				return;
+			}
+			ConcurrentSkipListSet<String> vals = names.get(entry.getName().toLowerCase());
+			if (vals != null) {
+				vals.remove(entry.mor.getVal());
+			}
+		}
+
+		// Only the types of the index are checked, not every entity
+		ManagedObjectReference findByName(String type, String name) {
+			String lower = name.toLowerCase();
+			String foundType = null;
+			String foundVal = null;
+			for (Map.Entry<String,ConcurrentHashMap<String,ConcurrentSkipListSet<String>>> names : byName.entrySet()) {
+				if ((foundType != null && foundType.compareTo(names.getKey()) < 0) || !isOfType(names.getKey(), type)) {
+					continue;
+				}
+				ConcurrentSkipListSet<String> vals = names.getValue().get(lower);
+				if (vals == null) {
+					continue;
+				}
+				for (String val : vals) {
+					// lowest value first
+					foundType = names.getKey();
+					foundVal = val;
+					break;
+				}
+			}
+			Entry entry = foundVal == null ? null : byKey.get(foundType + ":" + foundVal);
+			return entry == null ? null : entry.mor;
+		}
+	}
+
+	/**
+	 * A mirrored entity, never modified once published.
+	 */
+	public static class Entry {
+		final ManagedObjectReference mor;
+		final HashMap<String,Object> props;
+
+		Entry(ManagedObjectReference mor, HashMap<String,Object> props) {
+			this.mor = mor;
+			this.props = props;
+		}
+
+		public ManagedObjectReference getMOR() {
+			return mor;
+		}
+
+		public String getName() {
+			Object name = props.get("name");
+			return name == null ? null : name.toString();
+		}
+
+		public ManagedObjectReference getParent() {
+			return (ManagedObjectReference) props.get("parent");
+		}
+
+		public Object getValue(String prop) {
+			return props.get(prop);
+		}
+
+		// Build an object content as returned by the PropertyCollector
+		ObjectContent toObjectContent(String[] paths) {
+			ArrayList<DynamicProperty> propSet = new ArrayList<DynamicProperty>();
+			for (String path : paths) {
+				Object val = props.get(path);
+				if (val == null) {
+					continue;
+				}
+				DynamicProperty prop = new DynamicProperty();
+				prop.setName(path);
+				prop.setVal(val);
+				propSet.add(prop);
+			}
+			ObjectContent oc = new ObjectContent();
+			oc.setObj(mor);
+			oc.setPropSet(propSet.toArray(new DynamicProperty[propSet.size()]));
+			return oc;
+		}
+	}
+}
@@ -0,0 +1,62 @@
+import com.vmware.vim25.*;
+import com.vmware.vim25.mo.*;
+
+/**
+ * Resolves folder and resource pool paths (a/b/c) given to the actions.
+ *
+ * A path is resolved with a single SearchIndex.findByInventoryPath call,
+ * relative paths being prefixed with the inventory path of their root. The
+ * existing part of a path that must be created is found in memory, from the
+ * containers cached by InventoryPaths.
+ */
+public class InventoryPathResolver {
+
+	/**
+	 * Resolve a path from the root folder, null if not found.
+	 */
+	public static ManagedObjectReference resolve(ServiceInstance si, String path) throws Exception {
+		ManagedEntity entity = si.getSearchIndex().findByInventoryPath(path);
+		return entity == null ? null : entity.getMOR();
+	}
+
+	/**
+	 * Resolve a path from a container, null if not found.
+	 */
+	public static ManagedObjectReference resolve(ServiceInstance si, ManagedObjectReference root, String path) throws Exception {
+		return resolve(si, join(InventoryPaths.getPath(si, root), path));
+	}
+
+	/**
+	 * Resolve the longest existing part of a path from a container. The
+	 * references of the found segments are returned, the missing ones are
+	 * null.
+	 */
+	public static ManagedObjectReference[] resolvePrefix(ServiceInstance si, ManagedObjectReference root, String[] segments) throws Exception {
+		ManagedObjectReference[] result = new ManagedObjectReference[segments.length];
+		String rootPath = InventoryPaths.getPath(si, root);
+		ManagedObjectReference parent = root;
+		for (int i = 0; i < segments.length; i++) {
+			ManagedObjectReference child = InventoryPaths.getChild(si, parent, segments[i]);
+			if (child == null) {
+				// not cached, may have been created since the containers were retrieved
+				StringBuilder path = new StringBuilder(rootPath);
+				for (int j = 0; j <= i; j++) {
+					path.append(path.length() > 0 ? "/" : "").append(segments[j]);
+				}
+				child = resolve(si, path.toString());
+				if (child == null) {
+					break;
+				}
+				InventoryPaths.add(si, child, segments[i], parent);
+			}
+			result[i] = child;
+			parent = child;
+		}
+		return result;
+	}
+
+	// Join two paths
+	private static String join(String parent, String path) {
+		return parent.length() == 0 ? path : parent + "/" + path;
+	}
+}
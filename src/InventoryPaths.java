@@ -0,0 +1,203 @@
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.vmware.vim25.*;
+import com.vmware.vim25.mo.*;
+
+/**
+ * Computes inventory paths (datacenter/folder/.../name, as accepted by
+ * SearchIndex.findByInventoryPath) in memory.
+ *
+ * The names and parents of the containers (folders, datacenters, compute
+ * resources and resource pools) a user sees on a vCenter are retrieved at
+ * once and kept for a while, per vCenter and user. A container missing from
+ * the cache is retrieved on its own and added. The inventory mirror (also
+ * per user) is used instead when it is current.
+ *
+ * The containers are also indexed by parent and name, so the child of a
+ * container can be looked up in memory (see InventoryPathResolver).
+ */
+public class InventoryPaths {
+
+	// Time the containers are kept before being retrieved again (ms)
+	private static final long TTL = Long.getLong("oovijava.paths.ttl", 300000L);
+
+	// Types of the containers
+	private static final String[] TYPES = new String[] { "Folder", "Datacenter", "ComputeResource", "ResourcePool" };
+
+	// Properties of the containers
+	private static final String[] PROPS = new String[] { "name", "parent" };
+
+	// Maximum depth of a path, guards against inconsistent parents
+	private static final int MAX_DEPTH = 64;
+
+	// Containers per vCenter and user
+	private static final HashMap<String,Containers> cache = new HashMap<String,Containers>();
+
+	/**
+	 * Get the inventory path of an entity from its name and parent, up to its
+	 * datacenter, the root folder excluded.
+	 */
+	public static String getPath(ServiceInstance si, String name, ManagedObjectReference parent) throws Exception {
+		InventoryMirror mirror = InventoryMirror.get(si);
+		if (mirror != null && !mirror.isCurrent()) {
+			mirror = null;
+		}
+		Containers containers = mirror == null ? get(si) : null;
+		StringBuilder path = new StringBuilder(name);
+		ManagedObjectReference mor = parent;
+		for (int depth = 0; mor != null && depth < MAX_DEPTH; depth++) {
+			Node node = mirror == null ? lookup(si, containers, mor) : lookup(mirror, mor);
+			if (node == null || node.parent == null) {
+				// unknown or root folder, not part of the paths
+				break;
+			}
+			path.insert(0, node.name + "/");
+			if ("Datacenter".equals(mor.getType())) {
+				break;
+			}
+			mor = node.parent;
+		}
+		return path.toString();
+	}
+
+	/**
+	 * Get the inventory path of a container, empty for the root folder.
+	 */
+	public static String getPath(ServiceInstance si, ManagedObjectReference mor) throws Exception {
+		Node node = lookup(si, get(si), mor);
+		if (node == null) {
+			throw new Exception("Entity not found: " + mor.getType() + ":" + mor.getVal() + ".");
+		}
+		if (node.parent == null) {
+			return "";
+		}
+		return getPath(si, node.name, node.parent);
+	}
+
+	/**
+	 * Get the cached child container of a container by name, null if unknown.
+	 */
+	public static ManagedObjectReference getChild(ServiceInstance si, ManagedObjectReference parent, String name) throws Exception {
+		return get(si).getChild(parent, name);
+	}
+
+	/**
+	 * Add a container (created or found otherwise) to the cache.
+	 */
+	public static void add(ServiceInstance si, ManagedObjectReference mor, String name, ManagedObjectReference parent) throws Exception {
+		get(si).put(mor, new Node(name, parent));
+	}
+
+	/**
+	 * Get the inventory path of an object content holding name and parent.
+	 */
+	public static String getPath(ServiceInstance si, ObjectContent oc) throws Exception {
+		Object name = PropertyRetriever.getValue(oc, "name");
+		return getPath(si, String.valueOf(name), (ManagedObjectReference) PropertyRetriever.getValue(oc, "parent"));
+	}
+
+	// Get a container from the mirror
+	private static Node lookup(InventoryMirror mirror, ManagedObjectReference mor) {
+		InventoryMirror.Entry entry = mirror.getEntry(mor);
+		if (entry == null) {
+			return null;
+		}
+		return new Node(entry.getName(), entry.getParent());
+	}
+
+	// Get a container, retrieved if not cached
+	private static Node lookup(ServiceInstance si, Containers containers, ManagedObjectReference mor) throws Exception {
+		Node node = containers.nodes.get(key(mor));
+		if (node == null) {
+			ObjectContent oc = PropertyRetriever.retrieveObject(si, mor, PROPS);
+			if (oc == null) {
+				return null;
+			}
+			node = new Node(oc);
+			containers.put(mor, node);
+		}
+		return node;
+	}
+
+	// Get the containers of a vCenter seen by the user of the session,
+	// retrieved when expired
+	private static Containers get(ServiceInstance si) throws Exception {
+		String key = si.getServerConnection().getUrl().getHost() + "|" + si.getServerConnection().getUsername();
+		synchronized (cache) {
+			Containers containers = cache.get(key);
+			if (containers != null && System.currentTimeMillis() - containers.loaded <= TTL) {
+				return containers;
+			}
+		}
+		Containers containers = new Containers();
+		ContainerView view = si.getViewManager().createContainerView(si.getRootFolder(), TYPES, true);
+		try {
+			PropertyFilterSpec spec = PropertyRetriever.buildViewFilter(view.getMOR(), TYPES[0], PROPS);
+			PropertySpec[] propSet = new PropertySpec[TYPES.length];
+			for (int i = 0; i < TYPES.length; i++) {
+				propSet[i] = new PropertySpec();
+				propSet[i].setType(TYPES[i]);
+				propSet[i].setPathSet(PROPS);
+			}
+			spec.setPropSet(propSet);
+			for (ObjectContent oc : PropertyRetriever.retrieve(si, spec)) {
+				containers.put(oc.getObj(), new Node(oc));
+			}
+		} finally {
+			view.destroyView();
+		}
+		synchronized (cache) {
+			cache.put(key, containers);
+		}
+		return containers;
+	}
+
+	// Key of a reference
+	private static String key(ManagedObjectReference mor) {
+		return mor.getType() + ":" + mor.getVal();
+	}
+
+	// Containers of a vCenter, with their children by name
+	private static class Containers {
+		final long loaded = System.currentTimeMillis();
+		final ConcurrentHashMap<String,Node> nodes = new ConcurrentHashMap<String,Node>();
+		final ConcurrentHashMap<String,ConcurrentHashMap<String,ManagedObjectReference>> children = new ConcurrentHashMap<String,ConcurrentHashMap<String,ManagedObjectReference>>();
+
+		void put(ManagedObjectReference mor, Node node) {
+			nodes.put(key(mor), node);
+			if (node.parent == null) {
+				return;
+			}
+			ConcurrentHashMap<String,ManagedObjectReference> named = children.get(key(node.parent));
+			if (named == null) {
+				named = new ConcurrentHashMap<String,ManagedObjectReference>();
+				ConcurrentHashMap<String,ManagedObjectReference> previous = children.putIfAbsent(key(node.parent), named);
+				if (previous != null) {
+					named = previous;
+				}
+			}
+			named.put(node.name, mor);
+		}
+
+		ManagedObjectReference getChild(ManagedObjectReference parent, String name) {
+			ConcurrentHashMap<String,ManagedObjectReference> named = children.get(key(parent));
+			return named == null ? null : named.get(name);
+		}
+	}
+
+	// Name and parent of a container
+	private static class Node {
+		final String name;
+		final ManagedObjectReference parent;
+
+		Node(String name, ManagedObjectReference parent) {
+			this.name = name;
+			this.parent = parent;
+		}
+
+		Node(ObjectContent oc) {
+			this(String.valueOf(PropertyRetriever.getValue(oc, "name")), (ManagedObjectReference) PropertyRetriever.getValue(oc, "parent"));
+		}
+	}
+}
@@ -0,0 +1,133 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+import com.vmware.vim25.ManagedObjectReference;
+
+/**
+ * Compact on disk copy of the mirrored inventory (type, reference, name and
+ * parent of every entity).
+ *
+ * The file is written to a temporary file then renamed, and read back
+ * sequentially. It starts with a magic number and a format version. The
+ * PropertyCollector version is not kept: it is only valid for the collector
+ * that returned it.
+ */
+public class InventorySnapshot {
+
+	// File magic number
+	private static final int MAGIC = 0x4f4f564a;
+
+	// File format version, 1 had the PropertyCollector version
+	private static final int FORMAT = 2;
+
+	// Saved entities
+	private final ArrayList<InventoryMirror.Entry> entries;
+
+	private InventorySnapshot(ArrayList<InventoryMirror.Entry> entries) {
+		this.entries = entries;
+	}
+
+	public ArrayList<InventoryMirror.Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Save entities, replacing the file atomically.
+	 */
+	public static void save(File file, Collection<InventoryMirror.Entry> entries) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT);
+			out.writeInt(entries.size());
+			for (InventoryMirror.Entry entry : entries) {
+				ManagedObjectReference parent = entry.getParent();
+				writeString(out, entry.getMOR().getType());
+				writeString(out, entry.getMOR().getVal());
+				writeString(out, entry.getName());
+				writeString(out, parent == null ? null : parent.getType());
+				writeString(out, parent == null ? null : parent.getVal());
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			// rename does not replace an existing file everywhere
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Could not replace snapshot " + file + ".");
+			}
+		}
+	}
+
+	/**
+	 * Load a snapshot, null if the file does not exist or has another format.
+	 */
+	public static InventorySnapshot load(File file) throws IOException {
+		if (!file.isFile()) {
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+		try {
+			if (file.length() < 8 || in.readInt() != MAGIC || in.readInt() != FORMAT) {
+				return null;
+			}
+			int count = in.readInt();
+			ArrayList<InventoryMirror.Entry> entries = new ArrayList<InventoryMirror.Entry>(count);
+			for (int i = 0; i < count; i++) {
+				ManagedObjectReference mor = new ManagedObjectReference();
+				mor.setType(readString(in));
+				mor.setVal(readString(in));
+				HashMap<String,Object> props = new HashMap<String,Object>();
+				String name = readString(in);
+				if (name != null) {
+					props.put("name", name);
+				}
+				String parentType = readString(in);
+				String parentVal = readString(in);
+				if (parentType != null) {
+					ManagedObjectReference parent = new ManagedObjectReference();
+					parent.setType(parentType);
+					parent.setVal(parentVal);
+					props.put("parent", parent);
+				}
+				entries.add(new InventoryMirror.Entry(mor, props));
+			}
+			return new InventorySnapshot(entries);
+		} finally {
+			in.close();
+		}
+	}
+
+	// Write a nullable UTF-8 string prefixed by its length (-1 for null)
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	// Read a string written by writeString
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
@@ -0,0 +1,92 @@
+import java.util.ArrayList;
+
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TraversalSpec;
+
+/**
+ * Minimal PropertyCollector traversal specs per searched type.
+ *
+ * PropertyCollectorUtil.buildFullTraversalV4() follows every inventory
+ * relation, so vCenter visits hosts, networks, datastores and resource pools
+ * whatever type is searched. The specs built here only follow the relations
+ * leading to the searched type (e.g. datacenter to datastore folder to
+ * child entities for datastores), from any root.
+ */
+public class InventoryTraversal {
+
+	// Relations, {name, type, path}
+	private static final String[] FOLDER_CHILDS = { "folderChilds", "Folder", "childEntity" };
+	private static final String[] DC_VM_FOLDER = { "dcVmFolder", "Datacenter", "vmFolder" };
+	private static final String[] DC_HOST_FOLDER = { "dcHostFolder", "Datacenter", "hostFolder" };
+	private static final String[] DC_DATASTORE_FOLDER = { "dcDatastoreFolder", "Datacenter", "datastoreFolder" };
+	private static final String[] DC_NETWORK_FOLDER = { "dcNetworkFolder", "Datacenter", "networkFolder" };
+	private static final String[] CR_HOSTS = { "crHosts", "ComputeResource", "host" };
+	private static final String[] CR_RESOURCE_POOL = { "crResourcePool", "ComputeResource", "resourcePool" };
+	private static final String[] CR_DATASTORES = { "crDatastores", "ComputeResource", "datastore" };
+	private static final String[] CR_NETWORKS = { "crNetworks", "ComputeResource", "network" };
+	private static final String[] RP_RESOURCE_POOLS = { "rpResourcePools", "ResourcePool", "resourcePool" };
+	private static final String[] RP_VMS = { "rpVms", "ResourcePool", "vm" };
+	private static final String[] HOST_VMS = { "hostVms", "HostSystem", "vm" };
+	private static final String[] HOST_DATASTORES = { "hostDatastores", "HostSystem", "datastore" };
+	private static final String[] HOST_NETWORKS = { "hostNetworks", "HostSystem", "network" };
+
+	/**
+	 * Build the traversal specs reaching the entities of a type, null if the
+	 * type has no targeted traversal (the full traversal is then needed).
+	 */
+	public static SelectionSpec[] build(String type) {
+		if (type == null || "ManagedEntity".equals(type)) {
+			return null;
+		}
+		if (InventoryMirror.isOfType(type, "Datacenter")) {
+			return build(FOLDER_CHILDS);
+		}
+		if (InventoryMirror.isOfType(type, "Datastore") || InventoryMirror.isOfType(type, "StoragePod")) {
+			// checked before folders as datastore clusters are folders, with the
+			// datastores of cluster or host roots
+			return build(FOLDER_CHILDS, DC_DATASTORE_FOLDER, CR_DATASTORES, HOST_DATASTORES);
+		}
+		if (InventoryMirror.isOfType(type, "Folder")) {
+			return build(FOLDER_CHILDS, DC_VM_FOLDER, DC_HOST_FOLDER, DC_DATASTORE_FOLDER, DC_NETWORK_FOLDER);
+		}
+		if (InventoryMirror.isOfType(type, "VirtualMachine")) {
+			// virtual machines of vApps and under cluster or host roots
+			return build(FOLDER_CHILDS, DC_VM_FOLDER, CR_RESOURCE_POOL, RP_RESOURCE_POOLS, RP_VMS, HOST_VMS);
+		}
+		if (InventoryMirror.isOfType(type, "HostSystem")) {
+			return build(FOLDER_CHILDS, DC_HOST_FOLDER, CR_HOSTS);
+		}
+		if (InventoryMirror.isOfType(type, "ComputeResource")) {
+			return build(FOLDER_CHILDS, DC_HOST_FOLDER);
+		}
+		if (InventoryMirror.isOfType(type, "ResourcePool")) {
+			// vApps are also children of the virtual machine folders
+			return build(FOLDER_CHILDS, DC_HOST_FOLDER, DC_VM_FOLDER, CR_RESOURCE_POOL, RP_RESOURCE_POOLS);
+		}
+		if (InventoryMirror.isOfType(type, "Network") || InventoryMirror.isOfType(type, "DistributedVirtualSwitch")) {
+			// networks of cluster or host roots
+			return build(FOLDER_CHILDS, DC_NETWORK_FOLDER, CR_NETWORKS, HOST_NETWORKS);
+		}
+		return null;
+	}
+
+	// Build traversal specs following the relations from each other
+	private static SelectionSpec[] build(String[]... relations) {
+		ArrayList<SelectionSpec> specs = new ArrayList<SelectionSpec>();
+		for (String[] relation : relations) {
+			TraversalSpec ts = new TraversalSpec();
+			ts.setName(relation[0]);
+			ts.setType(relation[1]);
+			ts.setPath(relation[2]);
+			ts.setSkip(Boolean.FALSE);
+			SelectionSpec[] next = new SelectionSpec[relations.length];
+			for (int i = 0; i < relations.length; i++) {
+				next[i] = new SelectionSpec();
+				next[i].setName(relations[i][0]);
+			}
+			ts.setSelectSet(next);
+			specs.add(ts);
+		}
+		return specs.toArray(new SelectionSpec[specs.size()]);
+	}
+}
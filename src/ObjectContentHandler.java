@@ -0,0 +1,10 @@
+import com.vmware.vim25.ObjectContent;
+
+/**
+ * Receives the object contents of a paged retrieval as they arrive.
+ */
+public interface ObjectContentHandler {
+
+	public void handle(ObjectContent oc) throws Exception;
+
+}
@@ -0,0 +1,316 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import com.vmware.vim25.*;
+import com.vmware.vim25.mo.*;
+import com.vmware.vim25.mo.util.PropertyCollectorUtil;
+
+/**
+ * Chooses the host and datastore of a deployment in a cluster.
+ *
+ * The hosts of a cluster (capacity, mounted datastores, quickStats) and its
+ * datastores (capacity, free space) are retrieved with one retrieval and
+ * kept. Only the changing properties (usage, free space, states) are
+ * retrieved again after oovijava.placement.statsTtl, the whole cluster after
+ * oovijava.placement.ttl. The choice is then made in memory:
+ *  - datastore: largest free space percentage among those mounted by a
+ *    usable host, through DatastoreReservations,
+ *  - host: largest free share of its bottleneck resource (cpu or memory)
+ *    among the usable hosts mounting the datastore, the memory of the
+ *    virtual machines recently placed on it deducted.
+ */
+public class PlacementEngine {
+
+	// Time the hosts and datastores of a cluster are kept (ms)
+	private static final long TTL = Long.getLong("oovijava.placement.ttl", 300000L);
+
+	// Time the usage and free space are kept (ms), vCenter refreshes quickStats every 20 s
+	private static final long STATS_TTL = Long.getLong("oovijava.placement.statsTtl", 20000L);
+
+	// Properties of the hosts, changing ones first
+	private static final String[] HOST_STATS = new String[] { "runtime.connectionState", "runtime.inMaintenanceMode",
+			"summary.quickStats.overallCpuUsage", "summary.quickStats.overallMemoryUsage" };
+	private static final String[] HOST_PROPS = new String[] { "runtime.connectionState", "runtime.inMaintenanceMode",
+			"summary.quickStats.overallCpuUsage", "summary.quickStats.overallMemoryUsage",
+			"datastore", "summary.hardware.cpuMhz", "summary.hardware.numCpuCores", "summary.hardware.memorySize" };
+
+	// Properties of the datastores, changing ones first
+	private static final String[] DS_STATS = new String[] { "summary.freeSpace", "summary.accessible", "summary.maintenanceMode" };
+	private static final String[] DS_PROPS = new String[] { "summary.freeSpace", "summary.accessible", "summary.maintenanceMode",
+			"name", "summary.capacity" };
+
+	// Clusters per vCenter
+	private static final HashMap<String,Cluster> cache = new HashMap<String,Cluster>();
+
+	/**
+	 * Choose the host, and the datastore when none is given, of a virtual
+	 * machine of size bytes and memoryMB in a cluster. The space is reserved on
+	 * a chosen datastore, the reservation being part of the placement. Fails
+	 * when no usable host mounts the datastore.
+	 */
+	public static Placement place(ServiceInstance si, ManagedObjectReference cluster, ManagedObjectReference datastore,
+			long size, long memoryMB) throws Exception {
+		String vcenter = si.getServerConnection().getUrl().getHost();
+		Cluster state = get(si, vcenter, cluster);
+		DatastoreReservations.Reservation reservation = null;
+		synchronized (state) {
+			long now = System.currentTimeMillis();
+			if (datastore == null) {
+				// datastores mounted by a usable host
+				HashSet<String> mounted = new HashSet<String>();
+				for (Host host : state.hosts.values()) {
+					if (host.isUsable()) {
+						mounted.addAll(host.datastores);
+					}
+				}
+				ArrayList<DatastoreReservations.Candidate> candidates = new ArrayList<DatastoreReservations.Candidate>();
+				for (Datastore ds : state.datastores.values()) {
+					if (ds.isUsable() && mounted.contains(ds.mor.getVal())) {
+						candidates.add(new DatastoreReservations.Candidate(ds.mor, ds.name, ds.freeSpace, ds.capacity));
+					}
+				}
+				DatastoreReservations.Candidate chosen = DatastoreReservations.selectAndReserve(vcenter, candidates, size);
+				if (chosen == null) {
+					throw new Exception("No datastore of the cluster has enough free space.");
+				}
+				datastore = chosen.getMOR();
+				reservation = chosen.getReservation();
+			}
+			Host best = null;
+			double bestScore = 0;
+			for (Host host : state.hosts.values()) {
+				if (!host.isUsable() || !host.datastores.contains(datastore.getVal())) {
+					continue;
+				}
+				double score = host.getScore(now);
+				if (best == null || score > bestScore) {
+					best = host;
+					bestScore = score;
+				}
+			}
+			if (best == null) {
+				DatastoreReservations.release(reservation);
+				throw new Exception("No connected host of the cluster out of maintenance mounts datastore " + datastore.getVal() + ".");
+			}
+			best.pending.add(new long[] { memoryMB, now + TTL });
+			return new Placement(best.mor, datastore, reservation);
+		}
+	}
+
+	// Get the state of a cluster, retrieved or refreshed when expired. The
+	// check and the load are done under the lock of the cluster, concurrent
+	// deployments waiting for a single load.
+	private static Cluster get(ServiceInstance si, String vcenter, ManagedObjectReference cluster) throws Exception {
+		String key = vcenter + "|" + cluster.getVal();
+		Cluster state;
+		synchronized (cache) {
+			state = cache.get(key);
+			if (state == null) {
+				state = new Cluster();
+				cache.put(key, state);
+			}
+		}
+		synchronized (state.loading) {
+			long now = System.currentTimeMillis();
+			if (now - state.loaded > TTL) {
+				load(si, cluster, state, true);
+			} else if (now - state.refreshed > STATS_TTL) {
+				// only the changing properties
+				load(si, cluster, state, false);
+			}
+		}
+		return state;
+	}
+
+	// Retrieve the hosts and datastores of a cluster with one retrieval, all
+	// their properties or only the changing ones
+	private static void load(ServiceInstance si, ManagedObjectReference cluster, Cluster state, boolean full) throws Exception {
+		TraversalSpec hosts = new TraversalSpec();
+		hosts.setType("ComputeResource");
+		hosts.setPath("host");
+		hosts.setSkip(Boolean.FALSE);
+		TraversalSpec datastores = new TraversalSpec();
+		datastores.setType("ComputeResource");
+		datastores.setPath("datastore");
+		datastores.setSkip(Boolean.FALSE);
+		ObjectSpec os = new ObjectSpec();
+		os.setObj(cluster);
+		os.setSkip(Boolean.TRUE);
+		os.setSelectSet(new SelectionSpec[] { hosts, datastores });
+		PropertySpec hostSpec = new PropertySpec();
+		hostSpec.setType("HostSystem");
+		hostSpec.setPathSet(full ? HOST_PROPS : HOST_STATS);
+		PropertySpec dsSpec = new PropertySpec();
+		dsSpec.setType("Datastore");
+		dsSpec.setPathSet(full ? DS_PROPS : DS_STATS);
+		PropertyFilterSpec spec = new PropertyFilterSpec();
+		spec.setObjectSet(new ObjectSpec[] { os });
+		spec.setPropSet(new PropertySpec[] { hostSpec, dsSpec });
+		ArrayList<ObjectContent> contents = PropertyRetriever.retrieve(si, spec);
+		synchronized (state) {
+			if (full) {
+				// hosts and datastores gone since are dropped
+				state.hosts.clear();
+				state.datastores.clear();
+			}
+			for (ObjectContent oc : contents) {
+				String val = oc.getObj().getVal();
+				if ("HostSystem".equals(oc.getObj().getType())) {
+					Host host = state.hosts.get(val);
+					if (host == null) {
+						if (!full) {
+							// added since the cluster was retrieved, known at the next retrieval
+							continue;
+						}
+						host = new Host(oc);
+						state.hosts.put(val, host);
+					}
+					host.update(oc);
+				} else if ("Datastore".equals(oc.getObj().getType())) {
+					Datastore ds = state.datastores.get(val);
+					if (ds == null) {
+						if (!full) {
+							continue;
+						}
+						ds = new Datastore(oc);
+						state.datastores.put(val, ds);
+					}
+					ds.update(oc);
+				}
+			}
+			state.refreshed = System.currentTimeMillis();
+			if (full) {
+				state.loaded = state.refreshed;
+			}
+		}
+	}
+
+	// Number value of a property, 0 if not set
+	private static long getLong(ObjectContent oc, String name) {
+		Object value = PropertyRetriever.getValue(oc, name);
+		return value instanceof Number ? ((Number) value).longValue() : 0;
+	}
+
+	/**
+	 * Chosen host and datastore.
+	 */
+	public static class Placement {
+		final ManagedObjectReference host;
+		final ManagedObjectReference datastore;
+		final DatastoreReservations.Reservation reservation;
+
+		Placement(ManagedObjectReference host, ManagedObjectReference datastore, DatastoreReservations.Reservation reservation) {
+			this.host = host;
+			this.datastore = datastore;
+			this.reservation = reservation;
+		}
+
+		public ManagedObjectReference getHost() {
+			return host;
+		}
+
+		public ManagedObjectReference getDatastore() {
+			return datastore;
+		}
+
+		// Space reserved on the chosen datastore, null if the datastore was given
+		public DatastoreReservations.Reservation getReservation() {
+			return reservation;
+		}
+	}
+
+	// Hosts and datastores of a cluster guarded by the cluster, the load
+	// times by loading
+	private static class Cluster {
+		final Object loading = new Object();
+		long loaded = 0;
+		long refreshed = 0;
+		final HashMap<String,Host> hosts = new HashMap<String,Host>();
+		final HashMap<String,Datastore> datastores = new HashMap<String,Datastore>();
+	}
+
+	// A host of a cluster
+	private static class Host {
+		final ManagedObjectReference mor;
+		final HashSet<String> datastores = new HashSet<String>();
+		final long cpuCapacity;
+		final long memoryCapacity;
+		boolean connected;
+		boolean maintenance;
+		long cpuUsage;
+		long memoryUsage;
+		// memory of the virtual machines placed on the host and its expiration
+		final LinkedList<long[]> pending = new LinkedList<long[]>();
+
+		Host(ObjectContent oc) {
+			mor = oc.getObj();
+			// returned as ArrayOfManagedObjectReference
+			ManagedObjectReference[] mounted = (ManagedObjectReference[]) PropertyCollectorUtil.convertProperty(PropertyRetriever.getValue(oc, "datastore"));
+			if (mounted != null) {
+				for (ManagedObjectReference ds : mounted) {
+					datastores.add(ds.getVal());
+				}
+			}
+			// MHz and MB, as the quickStats
+			cpuCapacity = getLong(oc, "summary.hardware.cpuMhz") * getLong(oc, "summary.hardware.numCpuCores");
+			memoryCapacity = getLong(oc, "summary.hardware.memorySize") / (1024 * 1024);
+		}
+
+		void update(ObjectContent oc) {
+			connected = HostSystemConnectionState.connected.equals(PropertyRetriever.getValue(oc, "runtime.connectionState"));
+			maintenance = Boolean.TRUE.equals(PropertyRetriever.getValue(oc, "runtime.inMaintenanceMode"));
+			cpuUsage = getLong(oc, "summary.quickStats.overallCpuUsage");
+			memoryUsage = getLong(oc, "summary.quickStats.overallMemoryUsage");
+		}
+
+		boolean isUsable() {
+			return connected && !maintenance && cpuCapacity > 0 && memoryCapacity > 0;
+		}
+
+		// Free share of the bottleneck resource
+		double getScore(long now) {
+			long placed = 0;
+			for (Iterator<long[]> it = pending.iterator(); it.hasNext();) {
+				long[] entry = it.next();
+				if (entry[1] <= now) {
+					it.remove();
+				} else {
+					placed += entry[0];
+				}
+			}
+			double cpuFree = 1.0 - (double) cpuUsage / cpuCapacity;
+			double memoryFree = 1.0 - (double) (memoryUsage + placed) / memoryCapacity;
+			return Math.min(cpuFree, memoryFree);
+		}
+	}
+
+	// A datastore of a cluster
+	private static class Datastore {
+		final ManagedObjectReference mor;
+		final String name;
+		final long capacity;
+		long freeSpace;
+		boolean accessible;
+		boolean maintenance;
+
+		Datastore(ObjectContent oc) {
+			mor = oc.getObj();
+			name = String.valueOf(PropertyRetriever.getValue(oc, "name"));
+			capacity = getLong(oc, "summary.capacity");
+		}
+
+		void update(ObjectContent oc) {
+			freeSpace = getLong(oc, "summary.freeSpace");
+			accessible = Boolean.TRUE.equals(PropertyRetriever.getValue(oc, "summary.accessible"));
+			Object mode = PropertyRetriever.getValue(oc, "summary.maintenanceMode");
+			maintenance = mode != null && !"normal".equals(mode);
+		}
+
+		boolean isUsable() {
+			return accessible && !maintenance;
+		}
+	}
+}
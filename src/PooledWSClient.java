@@ -0,0 +1,156 @@
+import java.net.MalformedURLException;
+import java.rmi.RemoteException;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.WeakHashMap;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import com.vmware.vim25.ws.ClientCreator;
+import com.vmware.vim25.ws.WSClient;
+
+/**
+ * SOAP transport sharing its SSL socket factories between all the clients.
+ *
+ * The JDK keeps idle HTTPS connections per host and socket factory, and
+ * caches TLS sessions per SSL context. yavijava builds a new factory for
+ * every ServiceInstance so neither the connections nor the TLS sessions are
+ * reused. Sharing the factories lets every session of a vCenter reuse the
+ * same warm persistent connections and resume TLS sessions.
+ */
+public class PooledWSClient extends WSClient {
+
+	// Socket connect timeout (ms)
+	public static final int CONNECT_TIMEOUT = Integer.getInteger("oovijava.transport.connectTimeout", 30000);
+
+	// Socket read timeout (ms)
+	public static final int READ_TIMEOUT = Integer.getInteger("oovijava.transport.readTimeout", 600000);
+
+	// Maximum idle persistent connections kept per vCenter
+	private static final int MAX_CONNECTIONS = Integer.getInteger("oovijava.transport.maxConnections", 8);
+
+	// Number of TLS sessions cached for resumption
+	private static final int TLS_SESSION_CACHE_SIZE = Integer.getInteger("oovijava.transport.tlsSessionCacheSize", 256);
+
+	// Lifetime of a cached TLS session (s)
+	private static final int TLS_SESSION_TIMEOUT = Integer.getInteger("oovijava.transport.tlsSessionTimeout", 86400);
+
+	// Client class used by yavijava, pluggable
+	private static final String CLIENT_CLASS = System.getProperty("oovijava.transport.client", PooledWSClient.class.getName());
+
+	// Shared factory ignoring the certificates
+	private static SSLSocketFactory trustAllFactory;
+
+	// Shared factory checking the certificates
+	private static SSLSocketFactory defaultFactory;
+
+	// Shared factories per custom trust manager
+	private static final WeakHashMap<TrustManager,SSLSocketFactory> customFactories = new WeakHashMap<TrustManager,SSLSocketFactory>();
+
+	// Transport installed witness
+	private static boolean installed = false;
+
+	public PooledWSClient(String serverUrl) throws MalformedURLException, RemoteException {
+		this(serverUrl, true);
+	}
+
+	public PooledWSClient(String serverUrl, boolean ignoreCert) throws MalformedURLException, RemoteException {
+		super(serverUrl, ignoreCert);
+		setConnectTimeout(CONNECT_TIMEOUT);
+		setReadTimeout(READ_TIMEOUT);
+	}
+
+	public PooledWSClient(String serverUrl, boolean ignoreCert, TrustManager trustManager) throws MalformedURLException, RemoteException {
+		super(serverUrl, ignoreCert, trustManager);
+		setConnectTimeout(CONNECT_TIMEOUT);
+		setReadTimeout(READ_TIMEOUT);
+	}
+
+	/**
+	 * Make yavijava create its SOAP clients with the configured transport.
+	 */
+	public static synchronized void install() throws Exception {
+		if (installed) {
+			return;
+		}
+		// bound the idle persistent connections kept per destination
+		if (System.getProperty("http.maxConnections") == null) {
+			System.setProperty("http.maxConnections", String.valueOf(MAX_CONNECTIONS));
+		}
+		ClientCreator.clientClass = Class.forName(CLIENT_CLASS);
+		installed = true;
+	}
+
+	@Override
+	protected SSLSocketFactory getTrustAllSocketFactory(boolean ignoreCert) throws RemoteException {
+		synchronized (PooledWSClient.class) {
+			if (ignoreCert) {
+				if (trustAllFactory == null) {
+					trustAllFactory = createFactory(new TrustAllManager());
+					// same behaviour as yavijava: do not check the host name either
+					HttpsURLConnection.setDefaultHostnameVerifier(new HostnameVerifier() {
+						@Override
+						public boolean verify(String hostname, SSLSession session) {
+							return true;
+						}
+					});
+				}
+				return trustAllFactory;
+			}
+			if (defaultFactory == null) {
+				defaultFactory = createFactory(null);
+			}
+			return defaultFactory;
+		}
+	}
+
+	@Override
+	protected SSLSocketFactory getCustomTrustManagerSocketFactory(TrustManager trustManager) throws RemoteException {
+		synchronized (PooledWSClient.class) {
+			SSLSocketFactory factory = customFactories.get(trustManager);
+			if (factory == null) {
+				factory = createFactory(trustManager);
+				customFactories.put(trustManager, factory);
+			}
+			return factory;
+		}
+	}
+
+	// Create a socket factory with its own TLS session cache
+	private static SSLSocketFactory createFactory(TrustManager trustManager) throws RemoteException {
+		try {
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(null, trustManager == null ? null : new TrustManager[] { trustManager }, null);
+			SSLSessionContext sessions = context.getClientSessionContext();
+			sessions.setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+			sessions.setSessionTimeout(TLS_SESSION_TIMEOUT);
+			return context.getSocketFactory();
+		} catch (GeneralSecurityException e) {
+			throw new RemoteException("Could not initialize the SSL context.", e);
+		}
+	}
+
+	// Trust manager accepting any certificate
+	private static class TrustAllManager implements X509TrustManager {
+
+		@Override
+		public void checkClientTrusted(X509Certificate[] chain, String authType) {
+		}
+
+		@Override
+		public void checkServerTrusted(X509Certificate[] chain, String authType) {
+		}
+
+		@Override
+		public X509Certificate[] getAcceptedIssuers() {
+			return new X509Certificate[0];
+		}
+	}
+}
@@ -0,0 +1,140 @@
+import java.util.ArrayList;
+
+import com.vmware.vim25.*;
+import com.vmware.vim25.mo.*;
+
+/**
+ * PropertyCollector helpers shared by the actions.
+ */
+public class PropertyRetriever {
+
+	// Maximum number of objects returned by vCenter per page
+	public static final int PAGE_SIZE = Integer.getInteger("oovijava.retrieve.pageSize", 1000);
+
+	/**
+	 * Retrieve the object contents matching a filter, following the pages
+	 * returned by vCenter.
+	 */
+	public static ArrayList<ObjectContent> retrieve(ServiceInstance si, PropertyFilterSpec spec) throws Exception {
+		final ArrayList<ObjectContent> contents = new ArrayList<ObjectContent>();
+		retrieve(si, spec, PAGE_SIZE, new ObjectContentHandler() {
+			@Override
+			public void handle(ObjectContent oc) {
+				contents.add(oc);
+			}
+		});
+		return contents;
+	}
+
+	/**
+	 * Retrieve the object contents matching a filter page by page, each page
+	 * being handled before the next one is requested.
+	 */
+	public static void retrieve(ServiceInstance si, PropertyFilterSpec spec, int maxObjects, ObjectContentHandler handler) throws Exception {
+		PropertyCollector pc = si.getPropertyCollector();
+		RetrieveOptions options = new RetrieveOptions();
+		options.setMaxObjects(maxObjects);
+		RetrieveResult page = pc.retrievePropertiesEx(new PropertyFilterSpec[] { spec }, options);
+		try {
+			while (page != null) {
+				if (page.getObjects() != null) {
+					for (ObjectContent oc : page.getObjects()) {
+						handler.handle(oc);
+					}
+				}
+				if (page.getToken() == null) {
+					break;
+				}
+				page = pc.continueRetrievePropertiesEx(page.getToken());
+			}
+		} finally {
+			if (page != null && page.getToken() != null) {
+				// stopped early, free the remaining pages on vCenter
+				try {
+					pc.cancelRetrievePropertiesEx(page.getToken());
+				} catch (Exception e) {
+					// expires on vCenter anyway
+				}
+			}
+		}
+	}
+
+	/**
+	 * Retrieve properties of all the objects of a type under a root using a
+	 * container view.
+	 */
+	public static ArrayList<ObjectContent> retrieveByType(ServiceInstance si, ManagedEntity root,
+			String type, String[] props, boolean recurse) throws Exception {
+		// Let vCenter list the objects of the type
+		ContainerView view = si.getViewManager().createContainerView(root, new String[] { type }, recurse);
+		try {
+			return retrieve(si, buildViewFilter(view.getMOR(), type, props));
+		} finally {
+			view.destroyView();
+		}
+	}
+
+	/**
+	 * Retrieve properties of a single object, null if it does not exist
+	 * anymore.
+	 */
+	public static ObjectContent retrieveObject(ServiceInstance si, ManagedObjectReference mor, String[] props) throws Exception {
+		ObjectSpec os = new ObjectSpec();
+		os.setObj(mor);
+		os.setSkip(Boolean.FALSE);
+		PropertySpec ps = new PropertySpec();
+		ps.setType(mor.getType());
+		ps.setPathSet(props);
+		PropertyFilterSpec spec = new PropertyFilterSpec();
+		spec.setObjectSet(new ObjectSpec[] { os });
+		spec.setPropSet(new PropertySpec[] { ps });
+		ArrayList<ObjectContent> contents;
+		try {
+			contents = retrieve(si, spec);
+		} catch (ManagedObjectNotFound e) {
+			return null;
+		}
+		if (contents.isEmpty()) {
+			return null;
+		}
+		return contents.get(0);
+	}
+
+	/**
+	 * Build a filter returning properties of the objects of a container view.
+	 */
+	public static PropertyFilterSpec buildViewFilter(ManagedObjectReference view, String type, String[] props) {
+		// Traverse the view to its objects
+		TraversalSpec ts = new TraversalSpec();
+		ts.setName("view");
+		ts.setType("ContainerView");
+		ts.setPath("view");
+		ts.setSkip(Boolean.FALSE);
+		ObjectSpec os = new ObjectSpec();
+		os.setObj(view);
+		os.setSkip(Boolean.TRUE);
+		os.setSelectSet(new SelectionSpec[] { ts });
+		PropertySpec ps = new PropertySpec();
+		ps.setType(type);
+		ps.setPathSet(props);
+		PropertyFilterSpec spec = new PropertyFilterSpec();
+		spec.setObjectSet(new ObjectSpec[] { os });
+		spec.setPropSet(new PropertySpec[] { ps });
+		return spec;
+	}
+
+	/**
+	 * Get a property value from an object content, null if not returned.
+	 */
+	public static Object getValue(ObjectContent oc, String name) {
+		if (oc.getPropSet() == null) {
+			return null;
+		}
+		for (DynamicProperty prop : oc.getPropSet()) {
+			if (prop.getName().equals(name)) {
+				return prop.getVal();
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,188 @@
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of query results, least recently used entries evicted first.
+ *
+ * Each caller gives the maximum age of a result it accepts. Identical queries
+ * arriving while the result is being computed wait for it instead of asking
+ * vCenter again. The cache is bounded by its number of results and by their
+ * total length.
+ *
+ * The keys must include the credentials of the query (see hashCredential) so
+ * that a result is only served to a caller able to compute it.
+ */
+public class QueryCache {
+
+	// Maximum number of cached results
+	private static final int MAX_ENTRIES = Integer.getInteger("oovijava.queryCache.maxEntries", 256);
+
+	// Maximum total length of the cached results (chars)
+	private static final long MAX_CHARS = Long.getLong("oovijava.queryCache.maxChars", 16L * 1024 * 1024);
+
+	// Salt of the credential hashes, per process
+	private static final byte[] SALT = new byte[16];
+	static {
+		new SecureRandom().nextBytes(SALT);
+	}
+
+	// Cached results, least recently used first
+	private static final LinkedHashMap<String,Cached> cache = new LinkedHashMap<String,Cached>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,Cached> eldest) {
+			if (size() > MAX_ENTRIES) {
+				chars -= eldest.getValue().chars;
+				return true;
+			}
+			return false;
+		}
+	};
+
+	// Total length of the cached results, guarded by cache
+	private static long chars = 0;
+
+	// Results answered from the cache
+	private static final AtomicLong hits = new AtomicLong();
+
+	// Results computed
+	private static final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Get the result of a query not older than maxAge (ms), computing it if
+	 * needed. A null key runs the query without caching.
+	 */
+	public static Result get(String key, long maxAge, Callable<String> query) throws Exception {
+		if (key == null) {
+			return new Result(query.call(), false);
+		}
+		Cached entry;
+		boolean hit;
+		synchronized (cache) {
+			entry = cache.get(key);
+			hit = entry != null && (!entry.task.isDone() || System.currentTimeMillis() - entry.time <= maxAge);
+			if (!hit) {
+				entry = new Cached(query);
+				Cached previous = cache.put(key, entry);
+				if (previous != null) {
+					chars -= previous.chars;
+				}
+			}
+		}
+		if (hit) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+			entry.task.run();
+		}
+		try {
+			String value = entry.task.get();
+			if (!hit) {
+				account(key, entry, value.length());
+			}
+			return new Result(value, hit);
+		} catch (ExecutionException e) {
+			// never keep a failure
+			synchronized (cache) {
+				if (cache.get(key) == entry) {
+					cache.remove(key);
+				}
+			}
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	// Count the length of a computed result, evicting the least recently used
+	// results while the total is over the limit
+	private static void account(String key, Cached entry, int length) {
+		synchronized (cache) {
+			if (cache.get(key) != entry) {
+				// already evicted or replaced
+				return;
+			}
+			entry.chars = length;
+			chars += length;
+			for (Iterator<Cached> it = cache.values().iterator(); chars > MAX_CHARS && it.hasNext();) {
+				Cached eldest = it.next();
+				if (eldest.task.isDone()) {
+					chars -= eldest.chars;
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hash a credential for a cache key, salted per process so that the keys
+	 * reveal nothing about it.
+	 */
+	public static String hashCredential(String credential) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		digest.update(SALT);
+		digest.update((credential == null ? "" : credential).getBytes("UTF-8"));
+		StringBuilder hash = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hash.append(String.format("%02x", b));
+		}
+		return hash.toString();
+	}
+
+	/**
+	 * Get the number of results answered from the cache.
+	 */
+	public static long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Get the number of results computed.
+	 */
+	public static long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * A query result.
+	 */
+	public static class Result {
+		private final String value;
+		private final boolean hit;
+
+		Result(String value, boolean hit) {
+			this.value = value;
+			this.hit = hit;
+		}
+
+		public String getValue() {
+			return value;
+		}
+
+		// Answered from the cache
+		public boolean isHit() {
+			return hit;
+		}
+	}
+
+	// A cached result, computed once
+	private static class Cached {
+		final long time = System.currentTimeMillis();
+		final FutureTask<String> task;
+		// length of the result once computed, guarded by cache
+		long chars = 0;
+
+		Cached(Callable<String> query) {
+			task = new FutureTask<String>(query);
+		}
+	}
+}
@@ -0,0 +1,209 @@
+import java.io.IOException;
+import java.io.Writer;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Writes result rows as they are produced, in one of the output formats:
+ * <ul>
+ * <li>text: type:...&lt;col&gt;id:...&lt;col&gt;prop:value rows (default)</li>
+ * <li>json: array of objects</li>
+ * <li>jsonl: one object per line</li>
+ * <li>csv: RFC 4180 with a header line</li>
+ * </ul>
+ * Data object values are nested in JSON and written as JSON text otherwise.
+ */
+public abstract class ResultWriter {
+
+	// Destination of the rows
+	protected final StringBuilder out;
+
+	// Column names after type and id
+	protected final String[] columns;
+
+	// Rows written
+	protected int rows = 0;
+
+	protected ResultWriter(StringBuilder out, String[] columns) {
+		this.out = out;
+		this.columns = columns;
+	}
+
+	/**
+	 * Create a writer for an output format, text if empty.
+	 */
+	public static ResultWriter create(String format, StringBuilder out, String[] columns, String columnSeparator, String rowSeparator) throws Exception {
+		if (format == null || "".equals(format) || "text".equalsIgnoreCase(format)) {
+			return new TextWriter(out, columns, columnSeparator, rowSeparator);
+		}
+		if ("json".equalsIgnoreCase(format)) {
+			return new JsonRowWriter(out, columns, false);
+		}
+		if ("jsonl".equalsIgnoreCase(format)) {
+			return new JsonRowWriter(out, columns, true);
+		}
+		if ("csv".equalsIgnoreCase(format)) {
+			return new CsvWriter(out, columns);
+		}
+		throw new Exception("Unknown output format " + format + ".");
+	}
+
+	/**
+	 * Write a row, values are null for the columns not returned.
+	 */
+	public abstract void write(String type, String id, Object[] values) throws IOException;
+
+	/**
+	 * Terminate the output once all the rows are written.
+	 */
+	public void close() throws IOException {
+	}
+
+	// type:..<col>id:..<col>prop:value rows
+	private static class TextWriter extends ResultWriter {
+		final String columnSeparator;
+		final String rowSeparator;
+
+		TextWriter(StringBuilder out, String[] columns, String columnSeparator, String rowSeparator) {
+			super(out, columns);
+			this.columnSeparator = columnSeparator;
+			this.rowSeparator = rowSeparator;
+		}
+
+		@Override
+		public void write(String type, String id, Object[] values) throws IOException {
+			if (rows++ > 0) {
+				out.append(rowSeparator);
+			}
+			out.append("type:").append(type);
+			out.append(columnSeparator).append("id:").append(id);
+			for (int i = 0; i < columns.length; i++) {
+				if (values[i] != null) {
+					out.append(columnSeparator).append(columns[i]).append(':').append(DataObjectSerializer.toText(values[i]));
+				}
+			}
+		}
+	}
+
+	// Objects written with a JSON stream writer
+	private static class JsonRowWriter extends ResultWriter {
+		final boolean lines;
+		final JsonWriter json;
+
+		JsonRowWriter(StringBuilder out, String[] columns, boolean lines) throws IOException {
+			super(out, columns);
+			this.lines = lines;
+			this.json = new JsonWriter(new BuilderWriter(out));
+			// several top level objects in lines mode
+			json.setLenient(lines);
+			if (!lines) {
+				json.beginArray();
+			}
+		}
+
+		@Override
+		public void write(String type, String id, Object[] values) throws IOException {
+			if (lines && rows > 0) {
+				out.append('\n');
+			}
+			rows++;
+			json.beginObject();
+			json.name("type").value(type);
+			json.name("id").value(id);
+			for (int i = 0; i < columns.length; i++) {
+				if (values[i] != null) {
+					json.name(columns[i]);
+					DataObjectSerializer.write(json, values[i]);
+				}
+			}
+			json.endObject();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!lines) {
+				json.endArray();
+			}
+			json.flush();
+		}
+	}
+
+	// RFC 4180 comma separated values
+	private static class CsvWriter extends ResultWriter {
+
+		CsvWriter(StringBuilder out, String[] columns) {
+			super(out, columns);
+			field("type", true);
+			field("id", false);
+			for (String column : columns) {
+				field(column, false);
+			}
+		}
+
+		@Override
+		public void write(String type, String id, Object[] values) throws IOException {
+			rows++;
+			out.append("\r\n");
+			field(type, true);
+			field(id, false);
+			for (Object value : values) {
+				field(DataObjectSerializer.toText(value), false);
+			}
+		}
+
+		// Append a field, quoted when it holds a comma, quote or line break
+		private void field(String value, boolean first) {
+			if (!first) {
+				out.append(',');
+			}
+			if (value == null) {
+				return;
+			}
+			boolean quote = false;
+			for (int i = 0; i < value.length() && !quote; i++) {
+				char c = value.charAt(i);
+				quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+			}
+			if (!quote) {
+				out.append(value);
+				return;
+			}
+			out.append('"');
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '"') {
+					out.append('"');
+				}
+				out.append(c);
+			}
+			out.append('"');
+		}
+	}
+
+	// Writer appending to a string builder, without synchronization
+	private static class BuilderWriter extends Writer {
+		final StringBuilder out;
+
+		BuilderWriter(StringBuilder out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) {
+			out.append(cbuf, off, len);
+		}
+
+		@Override
+		public void write(String str, int off, int len) {
+			out.append(str, off, off + len);
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
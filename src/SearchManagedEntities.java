@@ -1,10 +1,14 @@
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
-import java.net.URL;
-import java.rmi.RemoteException;
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import com.iconclude.webservices.extensions.java.interfaces.*;
 import com.iconclude.webservices.extensions.java.types.*;
@@ -22,21 +26,27 @@ public class SearchManagedEntities implements IAction {
 			+"Get Management Objects.\n"
 			+"\n"
 			+"Inputs:\n"
-			+"-vCenter: vCenter server\n"
-			+"-Username: vCenter username\n"
-			+"-Password: vCenter password\n"
+			+"-vCenter: vCenter server, or servers separated by ','\n"
+			+"-Username: vCenter username, or one per server separated by ',' (\\, for a comma in a value)\n"
+			+"-Password: vCenter password, or one per server separated by ',' (\\, for a comma in a value)\n"
 			+"-columnSeparator: column separator\n"
 			+"-rowSeparator: raw separator\n" 
 			+"-type: Management Object Type\n"
-			+"-properties: properties to retrieve\n"
+			+"-properties: properties to retrieve, path for the inventory path\n"
 			+"-rootType: Root Management Object Type\n"
 			+"-rootMOR: Reference to the root Object\n"
 			+"-recurse: recurse in inventory\n"
 			+"-nameMatch: case insensitive contains on name\n"
+			+"-maxObjects: objects retrieved per page\n"
+			+"-searchMode: view (container view) or traversal\n"
+			+"-parallel: search the datacenters concurrently (true/false)\n"
+			+"-outputFormat: text, json, jsonl or csv (default text)\n"
+			+"-maxAge: accept a cached result up to this age in s (not cached if empty)\n"
 			+"\n"
 			+"Responses:\n"
 			+"-success: disks returned\n"
 			+"-failure: an error occured\n"
+			+"-partial: some of the vCenters failed, listed in errors\n"
 			+"\n</pre>";
 	
 	// Success return code
@@ -44,10 +54,16 @@ public class SearchManagedEntities implements IAction {
 	
 	// Failure return code
 	public static final int FAILURE = 1;
+
+	// Partial result return code, some vCenters failed
+	public static final int PARTIAL = 2;
 	
 	// result String identifier.
 	private static final String RETURNRESULT = "returnResult";
 
+	// Largest initial size of the output buffer (chars), it grows past it
+	private static final int MAX_INITIAL_CAPACITY = 64 * 1024;
+
 	@Override
 	public ActionResult execute(ISessionContext session, ActionRequest request,
 			IActionRegistry registry) throws Exception {
@@ -66,15 +82,32 @@ public class SearchManagedEntities implements IAction {
 		String rootMOR = ActionRequestUtils.resolveStringParam(request, "rootMOR");
 		String recurse = ActionRequestUtils.resolveStringParam(request, "recurse");
 		String nameMatch = ActionRequestUtils.resolveStringParam(request, "nameMatch");
+		String maxObjects = ActionRequestUtils.resolveStringParam(request, "maxObjects");
+		String searchMode = ActionRequestUtils.resolveStringParam(request, "searchMode");
+		String parallel = ActionRequestUtils.resolveStringParam(request, "parallel");
+		String outputFormat = ActionRequestUtils.resolveStringParam(request, "outputFormat");
+		String maxAge = ActionRequestUtils.resolveStringParam(request, "maxAge");
 		
 		try {
 			// Deploy the Virtual Machine
-			String objects = searchManagedEntities(server, username, password, columnSeparator, rowSeparator, type, properties, rootType, rootMOR, recurse, nameMatch);
+			QueryCache.Result objects = searchManagedEntitiesCached(server, username, password, columnSeparator, rowSeparator, type, properties, rootType, rootMOR, recurse, nameMatch, maxObjects, searchMode, parallel, outputFormat, maxAge);
 			// Indicate the result (task & result)
-			result.add("objects",objects);
+			result.add("objects",objects.getValue());
+			result.add("cached",String.valueOf(objects.isHit()));
+			result.add("cacheStats","hits:" + QueryCache.getHits() + ",misses:" + QueryCache.getMisses());
+			result.add("errors","");
 			result.add(SearchManagedEntities.RETURNRESULT,"Retruned Objects.");
 			// Set success return code
 			result.setReturnCode(SearchManagedEntities.SUCCESS);
+		} catch (PartialResultException e) {
+			// Rows of the vCenters that answered, never cached
+			result.add("objects",e.getObjects());
+			result.add("cached","false");
+			result.add("cacheStats","hits:" + QueryCache.getHits() + ",misses:" + QueryCache.getMisses());
+			result.add("errors",e.getErrors());
+			result.add(SearchManagedEntities.RETURNRESULT,e.getMessage());
+			// Set partial return code
+			result.setReturnCode(SearchManagedEntities.PARTIAL);
 		} catch (Exception e) {
 			// Set failed return code
 			result.setReturnCode(SearchManagedEntities.FAILURE);
@@ -118,6 +151,16 @@ public class SearchManagedEntities implements IAction {
 		RASBinding recursearg = RASBindingFactory.createPromptBinding("Recurse:", false);
 		// Set the nameMatch argument
 		RASBinding nameMatcharg = RASBindingFactory.createPromptBinding("Name Match:",false);
+		// Set the maxObjects argument
+		RASBinding maxObjectsarg = RASBindingFactory.createPromptBinding("Objects per page:",false);
+		// Set the searchMode argument
+		RASBinding searchModearg = RASBindingFactory.createPromptBinding("Search mode:",false);
+		// Set the parallel argument
+		RASBinding parallelarg = RASBindingFactory.createPromptBinding("Parallel:",false);
+		// Set the outputFormat argument
+		RASBinding outputFormatarg = RASBindingFactory.createPromptBinding("Output format:",false);
+		// Set the maxAge argument
+		RASBinding maxAgearg = RASBindingFactory.createPromptBinding("Maximum cached result age (s):",false);
 		
 		
 		
@@ -134,6 +177,11 @@ public class SearchManagedEntities implements IAction {
 		parameters.add("rootMOR",rootMORarg);
 		parameters.add("recurse",recursearg);
 		parameters.add("nameMatch",nameMatcharg);
+		parameters.add("maxObjects",maxObjectsarg);
+		parameters.add("searchMode",searchModearg);
+		parameters.add("parallel",parallelarg);
+		parameters.add("outputFormat",outputFormatarg);
+		parameters.add("maxAge",maxAgearg);
 		
 		// Set the parameter map
 		actionTemplate.setParameters(parameters);
@@ -141,6 +189,9 @@ public class SearchManagedEntities implements IAction {
 		// Create the result fields map
 		Map resultFields = new Map();
 		resultFields.add("objects", "");
+		resultFields.add("cached", "");
+		resultFields.add("cacheStats", "");
+		resultFields.add("errors", "");
 		resultFields.add(RETURNRESULT, "");
 		actionTemplate.setResultFields(resultFields);
 		
@@ -148,6 +199,7 @@ public class SearchManagedEntities implements IAction {
 		Map responses = new Map();
 		responses.add("success",String.valueOf(SearchManagedEntities.SUCCESS));
 		responses.add("failure",String.valueOf(SearchManagedEntities.FAILURE));
+		responses.add("partial",String.valueOf(SearchManagedEntities.PARTIAL));
 		
 		// Set the response map
 		actionTemplate.setResponses(responses);
@@ -155,8 +207,164 @@ public class SearchManagedEntities implements IAction {
 		return actionTemplate;
 	}
 
+	public static QueryCache.Result searchManagedEntitiesCached(final String server, final String username,
+			final String password, final String columnSeparator, final String rowSeparator, final String type, final String properties, final String rootType, final String rootMOR, final String recurse, final String nameMatch, final String maxObjects, final String searchMode, final String parallel, final String outputFormat, String maxAge) throws Exception {
+		Callable<String> query = new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				return searchManagedEntities(server, username, password, columnSeparator, rowSeparator, type, properties, rootType, rootMOR, recurse, nameMatch, maxObjects, searchMode, parallel, outputFormat);
+			}
+		};
+		if (maxAge == null || "".equals(maxAge)) {
+			// not cached
+			return QueryCache.get(null, 0, query);
+		}
+		// Same query on the same vCenter with the same credentials, output
+		// unchanged: a wrong password never matches a cached result
+		String key = server.toLowerCase() + "|" + username + "|" + QueryCache.hashCredential(password) + "|" + normalize(type) + "|" + normalize(properties) + "|" + normalize(rootType)
+				+ "|" + normalize(rootMOR) + "|" + !("false".equalsIgnoreCase(recurse)) + "|" + normalize(nameMatch).toLowerCase()
+				+ "|" + columnSeparator + "|" + rowSeparator + "|" + normalize(outputFormat).toLowerCase() + "|" + "true".equalsIgnoreCase(parallel);
+		return QueryCache.get(key, Long.parseLong(maxAge) * 1000L, query);
+	}
+
+	// Normalize a query argument for the cache key
+	private static String normalize(String value) {
+		return value == null ? "" : value.trim();
+	}
+
 	public static String searchManagedEntities(String server, String username,
-			String password, String columnSeparator, String rowSeparator, String type, String properties, String rootType, String rootMOR, String recurse, String nameMatch) throws Exception {
+			String password, final String columnSeparator, final String rowSeparator, final String type, final String properties, final String rootType, final String rootMOR, final String recurse, final String nameMatch, final String maxObjects, final String searchMode, final String parallel, final String outputFormat) throws Exception {
+		if (server.contains(",")) {
+			// Several vCenters searched concurrently
+			return searchFederated(server, username, password, columnSeparator, rowSeparator, type, properties, rootType, rootMOR, recurse, nameMatch, maxObjects, searchMode, parallel, outputFormat);
+		}
+		// Run on a pooled vCenter session, logging in again if it expired
+		return SessionPool.execute(server, username, password, new SessionTask<String>() {
+			@Override
+			public String run(ServiceInstance si) throws Exception {
+				return searchManagedEntities(si, columnSeparator, rowSeparator, type, properties, rootType, rootMOR, recurse, nameMatch, maxObjects, searchMode, parallel, outputFormat);
+			}
+		});
+	}
+
+	public static String searchManagedEntities(ServiceInstance si,
+			String columnSeparator, String rowSeparator, String type, String properties, String rootType, String rootMOR, String recurse, String nameMatch, String maxObjects, String searchMode, String parallel, String outputFormat) throws Exception {
+		String[] props = parseProperties(properties);
+		// Write the rows as the object contents arrive
+		StringBuilder out = new StringBuilder(getInitialCapacity(maxObjects, props.length));
+		ResultWriter writer = ResultWriter.create(outputFormat, out, props, columnSeparator, rowSeparator);
+		RowBuilder rows = new RowBuilder(props, nameMatch, writer, false);
+		search(si, type, properties, rootType, rootMOR, recurse, maxObjects, searchMode, parallel, rows);
+		// if nothing returned... exception
+		if (rows.count == 0) {
+			throw new Exception("Null array returned.");
+		}
+		writer.close();
+		return out.toString();
+	}
+	
+	// Search several vCenters concurrently, the rows tagged with their vCenter
+	// and written as they arrive. A vCenter failing does not fail the others:
+	// the rows of those that answered are returned with a
+	// PartialResultException listing the failures.
+	private static String searchFederated(String server, String username, String password, String columnSeparator, String rowSeparator,
+			final String type, final String properties, final String rootType, final String rootMOR, final String recurse, String nameMatch,
+			final String maxObjects, final String searchMode, final String parallel, String outputFormat) throws Exception {
+		final String[] servers = server.split(",");
+		// one username and password for all or one per vCenter
+		final String[] usernames = split(username, servers.length);
+		final String[] passwords = split(password, servers.length);
+		String[] props = parseProperties(properties);
+		String[] columns = new String[props.length + 1];
+		columns[0] = "vcenter";
+		System.arraycopy(props, 0, columns, 1, props.length);
+		StringBuilder out = new StringBuilder(getInitialCapacity(maxObjects, columns.length));
+		ResultWriter writer = ResultWriter.create(outputFormat, out, columns, columnSeparator, rowSeparator);
+		final RowBuilder rows = new RowBuilder(props, nameMatch, writer, true);
+		ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+		for (int i = 0; i < servers.length; i++) {
+			final int current = i;
+			futures.add(Workers.submit(new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					final String vcenter = servers[current].trim();
+					// objects already written, a retry on a new session
+					// must not write them again
+					final HashSet<String> written = new HashSet<String>();
+					return SessionPool.execute(vcenter, usernames[current], passwords[current], new SessionTask<Object>() {
+						@Override
+						public Object run(ServiceInstance si) throws Exception {
+							search(si, type, properties, rootType, rootMOR, recurse, maxObjects, searchMode, parallel, new ObjectContentHandler() {
+								@Override
+								public void handle(ObjectContent oc) throws Exception {
+									synchronized (rows) {
+										if (written.add(oc.getObj().getType() + ":" + oc.getObj().getVal())) {
+											rows.vcenter = vcenter;
+											rows.handle(oc);
+										}
+									}
+								}
+							});
+							return null;
+						}
+					});
+				}
+			}));
+		}
+		StringBuilder errors = new StringBuilder();
+		int failed = 0;
+		for (int i = 0; i < servers.length; i++) {
+			try {
+				Workers.get(futures.get(i));
+			} catch (Exception e) {
+				failed++;
+				errors.append(servers[i].trim()).append(": ").append(e.getMessage()).append("\n");
+			}
+		}
+		if (failed == servers.length) {
+			throw new Exception("All the vCenters failed.\n" + errors);
+		}
+		// if nothing returned... exception
+		if (rows.count == 0 && failed == 0) {
+			throw new Exception("Null array returned.");
+		}
+		writer.close();
+		if (failed > 0) {
+			throw new PartialResultException(failed + " of " + servers.length + " vCenters failed.", out.toString(), errors.toString());
+		}
+		return out.toString();
+	}
+	
+	// Split a value given once or once per vCenter, "\," standing for a
+	// comma and "\\" for a backslash in a value
+	private static String[] split(String value, int count) {
+		ArrayList<String> values = new ArrayList<String>();
+		StringBuilder whole = new StringBuilder();
+		StringBuilder current = new StringBuilder();
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' && i + 1 < value.length() && (value.charAt(i + 1) == ',' || value.charAt(i + 1) == '\\')) {
+				c = value.charAt(++i);
+				current.append(c);
+			} else if (c == ',') {
+				values.add(current.toString());
+				current.setLength(0);
+			} else {
+				current.append(c);
+			}
+			whole.append(c);
+		}
+		values.add(current.toString());
+		if (values.size() == count) {
+			return values.toArray(new String[count]);
+		}
+		String[] result = new String[count];
+		Arrays.fill(result, whole.toString());
+		return result;
+	}
+	
+	// Search the object contents, handled as they arrive
+	private static void search(final ServiceInstance si, String type, String properties, String rootType, String rootMOR, String recurse, String maxObjects, String searchMode, String parallel, ObjectContentHandler rows) throws Exception {
 		//Parse parameters
 		ManagedObjectReference mor = null;
 		if (!((("".equals(rootType)) | ("".equals(rootMOR))))) {
@@ -164,11 +372,13 @@ public class SearchManagedEntities implements IAction {
 			mor.setType(rootType);
 			mor.setVal(rootMOR);
 		}
-		if (!(properties.contains("name"))) {
-			properties = "name," + properties;
-		}
 		if (type==null) { type = "ManagedEntity"; }
-		String[] props = properties.split(",");
+		String[] props = parseProperties(properties);
+		if (Arrays.asList(props).contains("path")) {
+			// path computed from the parent instead of retrieved
+			props = withParent(props);
+			rows = new PathHandler(si, rows);
+		}
 		String[][] typeinfo = new String[1][props.length+1];
 		typeinfo[0][0] = type;
 		int index = 1;
@@ -176,10 +386,7 @@ public class SearchManagedEntities implements IAction {
 			typeinfo[0][index++] = prop;
 		}
 		Boolean rec = !("false".equals(recurse.toLowerCase()));
-		// Get the vCenter URL
-		URL url = new URL("https://" + server + "/sdk");
-		// Connect to vCenter
-		ServiceInstance si = new ServiceInstance(url,username,password,true);
+		int pageSize = getPageSize(maxObjects);
 		ManagedEntity root = null;
 		if (mor!=null) {
 			root =  MorUtil.createExactManagedEntity(si.getServerConnection(), mor);
@@ -197,39 +404,23 @@ public class SearchManagedEntities implements IAction {
 		// Replace with proper search including filters.
 		// ManagedEntity[] objects = navigator.searchManagedEntities(typeinfo,rec);
 		// Get object contents according to requested infos
-		ObjectContent[] ocs = retrieveObjectContents(typeinfo, rec, si, root);
-		// if nothing returned... exception
-		if (ocs==null || ocs.length == 0) {
-			throw new Exception("Null array returned.");
+		ObjectContent[] ocs = null;
+		// Answer from the inventory mirror when it holds the requested data
+		InventoryMirror mirror = InventoryMirror.get(si);
+		if (mirror != null && mirror.isCurrent() && rec) {
+			ocs = mirror.search(type, props, mor);
 		}
-		// build the retuned array
-		ArrayList<String> results = new ArrayList<String>(); 
-		for ( ObjectContent oc: ocs) {
-			DynamicProperty[] propSet = oc.getPropSet();
-			Hashtable<String,String> strProps = new Hashtable<String,String>();
-			if (propSet.length > 0) {
-				for (DynamicProperty prop : propSet) {
-					strProps.put(prop.getName().toLowerCase(),prop.getVal().toString());
-				}
-			} else {
-				// no properties returned !
-				throw new Exception("no properties returned");
-			}
-			if (strProps.containsKey("name")) {
-				if (strProps.get("name").toLowerCase().contains(nameMatch.toLowerCase())) {
-					String value = "";
-					value += "type:" + oc.getObj().getType();
-					value += columnSeparator + "id:" + oc.getObj().getVal();
-					for (String prop: props) {
-						if (strProps.containsKey(prop.toLowerCase())) {
-							value += columnSeparator + prop + ":" + strProps.get(prop.toLowerCase());
-						}
-					}
-					results.add(value);
-				}
-			} else {
-				throw new Exception("name not returned");
+		if (ocs != null) {
+			for (ObjectContent oc : ocs) {
+				rows.handle(oc);
 			}
+		} else if ("true".equalsIgnoreCase(parallel) && mor == null && rec && isInDatacenters(type) && SessionPool.getCredentials(si) != null) {
+			// one retrieval per datacenter, each on its own pooled session
+			retrieveParallel(si, typeinfo, type, props, searchMode, pageSize, rows);
+		} else if (useView(searchMode, mor, root, rec)) {
+			retrieveFromView(si, root, type, props, pageSize, rows);
+		} else {
+			retrieveObjectContents(typeinfo, rec, si, root, pageSize, rows);
 		}
 		/* done directly with object content parser
 		for (ManagedEntity object : objects) {
@@ -248,30 +439,171 @@ public class SearchManagedEntities implements IAction {
 				results.add(value);
 			}
 		} */
-		String finalResult = "";
-		boolean first = true;
-		for (String result : results) {
-			if (!(first)) {
-				finalResult += rowSeparator;
+	}
+	
+	// Get the requested properties, name always first
+	private static String[] parseProperties(String properties) {
+		if (!(properties.contains("name"))) {
+			properties = "name," + properties;
+		}
+		return properties.split(",");
+	}
+	
+	// Replace the path by the parent in the retrieved properties
+	private static String[] withParent(String[] props) {
+		ArrayList<String> result = new ArrayList<String>();
+		for (String prop : props) {
+			if (!"path".equals(prop) && !result.contains(prop)) {
+				result.add(prop);
+			}
+		}
+		if (!result.contains("parent")) {
+			result.add("parent");
+		}
+		return result.toArray(new String[result.size()]);
+	}
+	
+	// Get the number of objects retrieved per page
+	private static int getPageSize(String maxObjects) {
+		if (maxObjects != null && !("".equals(maxObjects))) {
+			return Integer.parseInt(maxObjects);
+		}
+		return PropertyRetriever.PAGE_SIZE;
+	}
+	
+	// Get the initial size of the output buffer, a page of rows of a few short
+	// columns, capped so that a large maxObjects does not allocate up front
+	private static int getInitialCapacity(String maxObjects, int columns) {
+		long capacity = (long) getPageSize(maxObjects) * (columns + 2) * 16;
+		return (int) Math.max(1024, Math.min(MAX_INITIAL_CAPACITY, capacity));
+	}
+	
+	// Check if all the entities of a type are under a datacenter
+	private static boolean isInDatacenters(String type) {
+		return InventoryTraversal.build(type) != null && !InventoryMirror.isOfType(type, "Folder")
+				&& !InventoryMirror.isOfType(type, "Datacenter");
+	}
+	
+	// Retrieve the object contents of each datacenter concurrently, handled
+	// in the order of the datacenter names. The datacenters are spread over
+	// the caller's session and at most maxSessions - 1 other lanes. A lane
+	// only runs on a session free right away, otherwise the caller's session
+	// runs it too: searches holding all the sessions never wait for each
+	// other.
+	private static void retrieveParallel(ServiceInstance si, final String[][] typeinfo, final String type, final String[] props,
+			final String searchMode, final int maxObjects, ObjectContentHandler handler) throws Exception {
+		final ArrayList<ObjectContent> dcs = PropertyRetriever.retrieveByType(si, si.getRootFolder(), "Datacenter", new String[] { "name" }, true);
+		Collections.sort(dcs, new Comparator<ObjectContent>() {
+			@Override
+			public int compare(ObjectContent o1, ObjectContent o2) {
+				return String.valueOf(PropertyRetriever.getValue(o1, "name")).compareTo(String.valueOf(PropertyRetriever.getValue(o2, "name")));
+			}
+		});
+		final String[] credentials = SessionPool.getCredentials(si);
+		final int lanes = Math.max(1, Math.min(dcs.size(), SessionPool.getMaxSessions()));
+		ArrayList<Future<ArrayList<ArrayList<ObjectContent>>>> futures = new ArrayList<Future<ArrayList<ArrayList<ObjectContent>>>>();
+		for (int lane = 1; lane < lanes; lane++) {
+			final int current = lane;
+			futures.add(Workers.submit(new Callable<ArrayList<ArrayList<ObjectContent>>>() {
+				@Override
+				public ArrayList<ArrayList<ObjectContent>> call() throws Exception {
+					return SessionPool.tryExecute(credentials[0], credentials[1], credentials[2], new SessionTask<ArrayList<ArrayList<ObjectContent>>>() {
+						@Override
+						public ArrayList<ArrayList<ObjectContent>> run(ServiceInstance dcSi) throws Exception {
+							return retrieveLane(dcSi, typeinfo, type, props, searchMode, maxObjects, dcs, current, lanes);
+						}
+					});
+				}
+			}));
+		}
+		// the first lane on the caller's session
+		ArrayList<ArrayList<ArrayList<ObjectContent>>> results = new ArrayList<ArrayList<ArrayList<ObjectContent>>>();
+		results.add(retrieveLane(si, typeinfo, type, props, searchMode, maxObjects, dcs, 0, lanes));
+		for (int lane = 1; lane < lanes; lane++) {
+			ArrayList<ArrayList<ObjectContent>> contents = Workers.get(futures.get(lane - 1));
+			if (contents == null) {
+				// no session was free for the lane
+				contents = retrieveLane(si, typeinfo, type, props, searchMode, maxObjects, dcs, lane, lanes);
+			}
+			results.add(contents);
+		}
+		for (int i = 0; i < dcs.size(); i++) {
+			for (ObjectContent oc : results.get(i % lanes).get(i / lanes)) {
+				handler.handle(oc);
+			}
+		}
+	}
+	
+	// Retrieve the object contents of the datacenters of a lane one after the
+	// other, the datacenters lane, lane + lanes...
+	private static ArrayList<ArrayList<ObjectContent>> retrieveLane(ServiceInstance si, String[][] typeinfo, String type, String[] props,
+			String searchMode, int maxObjects, ArrayList<ObjectContent> dcs, int lane, int lanes) throws Exception {
+		ArrayList<ArrayList<ObjectContent>> contents = new ArrayList<ArrayList<ObjectContent>>();
+		for (int i = lane; i < dcs.size(); i += lanes) {
+			contents.add(retrieveDatacenter(si, typeinfo, type, props, searchMode, maxObjects, dcs.get(i).getObj()));
+		}
+		return contents;
+	}
+	
+	// Retrieve the object contents of a datacenter
+	private static ArrayList<ObjectContent> retrieveDatacenter(ServiceInstance si, String[][] typeinfo, String type, String[] props,
+			String searchMode, int maxObjects, ManagedObjectReference dcMor) throws Exception {
+		final ArrayList<ObjectContent> contents = new ArrayList<ObjectContent>();
+		ObjectContentHandler collector = new ObjectContentHandler() {
+			@Override
+			public void handle(ObjectContent oc) {
+				contents.add(oc);
 			}
-			finalResult += result;
-			first = false;
+		};
+		ManagedEntity dc = MorUtil.createExactManagedEntity(si.getServerConnection(), dcMor);
+		if (useView(searchMode, null, dc, true)) {
+			retrieveFromView(si, dc, type, props, maxObjects, collector);
+		} else {
+			retrieveObjectContents(typeinfo, true, si, dc, maxObjects, collector);
 		}
-		return finalResult;
-	}	
+		return contents;
+	}
 	
-	// Depercated by retrieveObjectPropertiesEx... i think
-	@SuppressWarnings("deprecation")
-	private static ObjectContent[] retrieveObjectContents(String[][] typeinfo, boolean recurse, ServiceInstance si, ManagedEntity rootEntity) throws InvalidProperty, RuntimeFault, RemoteException
+	// Check if the search goes through a container view, the default with a
+	// root object. Views only list descendants and need a container root.
+	private static boolean useView(String searchMode, ManagedObjectReference mor, ManagedEntity root, boolean recurse) {
+		boolean view = (searchMode == null || "".equals(searchMode)) ? mor != null : "view".equalsIgnoreCase(searchMode);
+		if (!view || !recurse) {
+			return false;
+		}
+		String type = root.getMOR().getType();
+		return InventoryMirror.isOfType(type, "Folder") || InventoryMirror.isOfType(type, "Datacenter")
+				|| InventoryMirror.isOfType(type, "ComputeResource") || InventoryMirror.isOfType(type, "ResourcePool")
+				|| InventoryMirror.isOfType(type, "HostSystem");
+	}
+	
+	// Retrieve the object contents through a container view of the session
+	private static void retrieveFromView(ServiceInstance si, ManagedEntity root, String type, String[] props, int maxObjects, ObjectContentHandler handler) throws Exception {
+		ContainerView view = ViewCache.get(si, root, type);
+		try {
+			PropertyRetriever.retrieve(si, PropertyRetriever.buildViewFilter(view.getMOR(), type, props), maxObjects, handler);
+		} catch (ManagedObjectNotFound e) {
+			// view destroyed on vCenter side, create it again
+			ViewCache.remove(si, view);
+			view = ViewCache.get(si, root, type);
+			PropertyRetriever.retrieve(si, PropertyRetriever.buildViewFilter(view.getMOR(), type, props), maxObjects, handler);
+		}
+	}
+	
+	// Retrieve the object contents page by page (RetrievePropertiesEx)
+	private static void retrieveObjectContents(String[][] typeinfo, boolean recurse, ServiceInstance si, ManagedEntity rootEntity, int maxObjects, ObjectContentHandler handler) throws Exception
 	{
 		if (typeinfo == null || typeinfo.length == 0) 
 		{
-			return null;
+			return;
 		}
-		PropertyCollector pc = si.getPropertyCollector();
 		SelectionSpec[] selectionSpecs = null;
 		if (recurse) {
-			selectionSpecs = PropertyCollectorUtil.buildFullTraversalV4();
+			// only follow the relations leading to the searched type
+			selectionSpecs = InventoryTraversal.build(typeinfo[0][0]);
+			if (selectionSpecs == null) {
+				selectionSpecs = PropertyCollectorUtil.buildFullTraversalV4();
+			}
 		}
 	
 		PropertySpec[] propspecary = PropertyCollectorUtil.buildPropertySpecArray(typeinfo);
@@ -285,10 +617,110 @@ public class SearchManagedEntities implements IAction {
 		spec.setObjectSet(new ObjectSpec[] { os });
 		spec.setPropSet(propspecary);
 		
-		return pc.retrieveProperties(new PropertyFilterSpec[] { spec });
+		PropertyRetriever.retrieve(si, spec, maxObjects, handler);
+	}
+	
+	// Add the inventory path to the object contents
+	private static class PathHandler implements ObjectContentHandler {
+		final ServiceInstance si;
+		final ObjectContentHandler next;
+		
+		PathHandler(ServiceInstance si, ObjectContentHandler next) {
+			this.si = si;
+			this.next = next;
+		}
+		
+		@Override
+		public void handle(ObjectContent oc) throws Exception {
+			if (oc.getPropSet() != null && PropertyRetriever.getValue(oc, "name") != null) {
+				DynamicProperty path = new DynamicProperty();
+				path.setName("path");
+				path.setVal(InventoryPaths.getPath(si, oc));
+				DynamicProperty[] propSet = Arrays.copyOf(oc.getPropSet(), oc.getPropSet().length + 1);
+				propSet[propSet.length - 1] = path;
+				oc.setPropSet(propSet);
+			}
+			next.handle(oc);
+		}
+	}
+	
+	// Write the returned rows from the object contents, in linear time
+	private static class RowBuilder implements ObjectContentHandler {
+		final String[] lowerProps;
+		final String nameMatch;
+		final ResultWriter writer;
+		// first column is the vCenter of the object
+		final boolean tagged;
+		String vcenter;
+		int count = 0;
+		
+		RowBuilder(String[] props, String nameMatch, ResultWriter writer, boolean tagged) {
+			this.lowerProps = new String[props.length];
+			for (int i = 0; i < props.length; i++) {
+				lowerProps[i] = props[i].toLowerCase();
+			}
+			this.nameMatch = nameMatch.toLowerCase();
+			this.writer = writer;
+			this.tagged = tagged;
+		}
+		
+		@Override
+		public void handle(ObjectContent oc) throws Exception {
+			count++;
+			DynamicProperty[] propSet = oc.getPropSet();
+			HashMap<String,Object> strProps = new HashMap<String,Object>();
+			if (propSet != null && propSet.length > 0) {
+				for (DynamicProperty prop : propSet) {
+					strProps.put(prop.getName().toLowerCase(),prop.getVal());
+				}
+			} else {
+				// no properties returned !
+				throw new Exception("no properties returned");
+			}
+			if (strProps.containsKey("name")) {
+				if (strProps.get("name").toString().toLowerCase().contains(nameMatch)) {
+					int offset = tagged ? 1 : 0;
+					Object[] values = new Object[lowerProps.length + offset];
+					if (tagged) {
+						values[0] = vcenter;
+					}
+					for (int i = 0; i < lowerProps.length; i++) {
+						values[i + offset] = strProps.get(lowerProps[i]);
+					}
+					writer.write(oc.getObj().getType(), oc.getObj().getVal(), values);
+				}
+			} else {
+				throw new Exception("name not returned");
+			}
+		}
 	}
 	
 	
+	/**
+	 * Result of a search of several vCenters of which some failed.
+	 */
+	public static class PartialResultException extends Exception {
+		private static final long serialVersionUID = 1L;
+		private final String objects;
+		private final String errors;
+		
+		PartialResultException(String message, String objects, String errors) {
+			super(message);
+			this.objects = objects;
+			this.errors = errors;
+		}
+		
+		// Rows of the vCenters that answered
+		public String getObjects() {
+			return objects;
+		}
+		
+		// Failed vCenters and their error, one per line
+		public String getErrors() {
+			return errors;
+		}
+	}
+	
 	/*private static ManagedEntity[] createManagedEntities(ObjectContent[] ocs, ServiceInstance si) {
 		if(ocs==null) {
 			return new ManagedEntity[] {};
@@ -313,6 +745,10 @@ public class SearchManagedEntities implements IAction {
 		String rootMOR = null;
 		String recurse = null;
 		String nameMatch = null;
+		String maxObjects = null;
+		String searchMode = null;
+		String parallel = null;
+		String outputFormat = null;
 		
 		BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
 		
@@ -335,6 +771,14 @@ public class SearchManagedEntities implements IAction {
 			recurse = br.readLine();
 			System.out.print("name match:");
 			nameMatch = br.readLine();
+			System.out.print("objects per page:");
+			maxObjects = br.readLine();
+			System.out.print("search mode:");
+			searchMode = br.readLine();
+			System.out.print("parallel:");
+			parallel = br.readLine();
+			System.out.print("output format:");
+			outputFormat = br.readLine();
 			System.out.println("------------------------------");
 			System.out.println("This will deploy a VM:");
 			System.out.println("vCenter: " + username + "@" + server);
@@ -347,7 +791,7 @@ public class SearchManagedEntities implements IAction {
 			System.out.println("Confirm (y/n):");
 			String confirm = br.readLine();
 			if (confirm.equals("y")) {
-				String objects = searchManagedEntities(server, username, password,";","\n", type, properties, rootType, rootMOR, recurse, nameMatch);
+				String objects = searchManagedEntities(server, username, password,";","\n", type, properties, rootType, rootMOR, recurse, nameMatch, maxObjects, searchMode, parallel, outputFormat);
          	   System.out.println("Objects:");
                System.out.println(objects);
 			}
@@ -0,0 +1,394 @@
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.vmware.vim25.NotAuthenticated;
+import com.vmware.vim25.mo.*;
+
+/**
+ * Pool of logged in vCenter sessions shared by all the actions.
+ *
+ * Sessions are keyed by server and user. The number of sessions opened on a
+ * vCenter is capped, idle sessions are logged out after a while and, when the
+ * cap is reached, the least recently used idle session of another user is
+ * reclaimed.
+ *
+ * Idle sessions are kept alive with a cheap currentTime call and logged in
+ * again in the background when vCenter expired them, so that a borrowed
+ * session is normally hot. execute() also retries the work once on a new
+ * session when vCenter answers NotAuthenticated.
+ */
+public class SessionPool {
+
+	// Maximum number of sessions opened per vCenter
+	private static final int MAX_SESSIONS = Integer.getInteger("oovijava.pool.maxSessions", 8);
+
+	// Time after which an idle session is logged out (ms)
+	private static final long IDLE_TIMEOUT = Long.getLong("oovijava.pool.idleTimeout", 1800000L);
+
+	// Interval between two keep alive calls on an idle session (ms)
+	private static final long KEEPALIVE_INTERVAL = Long.getLong("oovijava.pool.keepAliveInterval", 300000L);
+
+	// Maximum time to wait for a session when the cap is reached (ms)
+	private static final long BORROW_TIMEOUT = Long.getLong("oovijava.pool.borrowTimeout", 60000L);
+
+	// Lock protecting the pool state
+	private static final Object LOCK = new Object();
+
+	// Sessions per vCenter
+	private static final HashMap<String,Server> servers = new HashMap<String,Server>();
+
+	// Sessions currently handed out
+	private static final IdentityHashMap<ServiceInstance,Session> borrowed = new IdentityHashMap<ServiceInstance,Session>();
+
+	// Background keep alive of the idle sessions
+	private static final ScheduledExecutorService keeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "oovijava-session-keepalive");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	static {
+		long period = Math.max(1000L, KEEPALIVE_INTERVAL / 4);
+		keeper.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					keepAlive();
+				} catch (RuntimeException e) {
+					// never let an error stop the keep alive
+				}
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Run a task on a pooled session. When vCenter reports the session as not
+	 * authenticated the session is dropped and the task is run again once on
+	 * a newly logged in session.
+	 */
+	public static <T> T execute(String server, String username, String password, SessionTask<T> task) throws Exception {
+		return execute(server, username, password, task, true);
+	}
+
+	/**
+	 * Run a task on a pooled session as execute() does when a session is
+	 * available right away, return null without running it otherwise. The
+	 * task must not return null.
+	 */
+	static <T> T tryExecute(String server, String username, String password, SessionTask<T> task) throws Exception {
+		return execute(server, username, password, task, false);
+	}
+
+	// Run a task on a pooled session, null if none is available and no wait
+	private static <T> T execute(String server, String username, String password, SessionTask<T> task, boolean wait) throws Exception {
+		ServiceInstance si = borrow(server, username, password, true, wait);
+		if (si == null) {
+			return null;
+		}
+		boolean expired = false;
+		try {
+			return task.run(si);
+		} catch (Exception e) {
+			if (!isNotAuthenticated(e)) {
+				throw e;
+			}
+			// the session expired on vCenter side
+			expired = true;
+		} finally {
+			// given back whatever the task threw, errors included
+			if (expired) {
+				invalidate(si);
+			} else {
+				release(si);
+			}
+		}
+		// Retry once on a fresh session
+		si = borrow(server, username, password, false, wait);
+		if (si == null) {
+			return null;
+		}
+		try {
+			return task.run(si);
+		} finally {
+			release(si);
+		}
+	}
+
+	/**
+	 * Borrow a logged in session, the session must be given back with
+	 * release() or invalidate().
+	 */
+	public static ServiceInstance borrow(String server, String username, String password) throws Exception {
+		return borrow(server, username, password, true, true);
+	}
+
+	// Borrow a session, reusing an idle one of the user if asked, null when
+	// none is available and no wait is asked
+	private static ServiceInstance borrow(String server, String username, String password, boolean reuse, boolean wait) throws Exception {
+		long deadline = System.currentTimeMillis() + BORROW_TIMEOUT;
+		Session session = null;
+		ArrayList<Session> toClose = new ArrayList<Session>();
+		try {
+			synchronized (LOCK) {
+				Server srv = servers.get(server);
+				if (srv == null) {
+					srv = new Server();
+					servers.put(server, srv);
+				}
+				while (true) {
+					long now = System.currentTimeMillis();
+					// drop the sessions idle for too long
+					evictIdle(srv, now, toClose);
+					// reuse the most recently used session of the user
+					for (Iterator<Session> it = srv.idle.iterator(); reuse && it.hasNext();) {
+						Session current = it.next();
+						if (current.username.equals(username) && current.password.equals(password)) {
+							it.remove();
+							borrowed.put(current.si, current);
+							return current.si;
+						}
+					}
+					if (srv.open < MAX_SESSIONS) {
+						// room left for a new session
+						srv.open++;
+						break;
+					}
+					if (!srv.idle.isEmpty()) {
+						// reclaim the least recently used idle session
+						toClose.add(srv.idle.removeLast());
+						break;
+					}
+					if (!wait) {
+						return null;
+					}
+					// wait for a session to be given back
+					long remaining = deadline - now;
+					if (remaining <= 0) {
+						throw new Exception("No vCenter session available on " + server + ".");
+					}
+					LOCK.wait(remaining);
+				}
+			}
+		} finally {
+			closeAll(toClose);
+		}
+		// Login outside of the lock
+		try {
+			session = new Session(server, username, password, connect(server, username, password));
+		} catch (Exception e) {
+			synchronized (LOCK) {
+				servers.get(server).open--;
+				LOCK.notifyAll();
+			}
+			throw e;
+		}
+		synchronized (LOCK) {
+			borrowed.put(session.si, session);
+		}
+		return session.si;
+	}
+
+	/**
+	 * Give a session back to the pool.
+	 */
+	public static void release(ServiceInstance si) {
+		if (si == null) {
+			return;
+		}
+		synchronized (LOCK) {
+			Session session = borrowed.remove(si);
+			if (session != null) {
+				session.lastUsed = System.currentTimeMillis();
+				session.lastPing = session.lastUsed;
+				servers.get(session.server).idle.addFirst(session);
+				LOCK.notifyAll();
+				return;
+			}
+		}
+		// not a pooled session
+		logout(si);
+	}
+
+	/**
+	 * Remove a broken session from the pool and log it out.
+	 */
+	public static void invalidate(ServiceInstance si) {
+		if (si == null) {
+			return;
+		}
+		synchronized (LOCK) {
+			Session session = borrowed.remove(si);
+			if (session != null) {
+				servers.get(session.server).open--;
+				LOCK.notifyAll();
+			}
+		}
+		logout(si);
+	}
+
+	/**
+	 * Get the maximum number of sessions opened per vCenter.
+	 */
+	static int getMaxSessions() {
+		return MAX_SESSIONS;
+	}
+
+	/**
+	 * Get the server, username and password of a borrowed session, null if
+	 * the session is not a borrowed one.
+	 */
+	static String[] getCredentials(ServiceInstance si) {
+		synchronized (LOCK) {
+			Session session = borrowed.get(si);
+			if (session == null) {
+				return null;
+			}
+			return new String[] { session.server, session.username, session.password };
+		}
+	}
+
+	/**
+	 * Open a new vCenter session.
+	 */
+	static ServiceInstance connect(String server, String username, String password) throws Exception {
+		// Use the shared transport
+		PooledWSClient.install();
+		// Get the vCenter URL
+		URL url = new URL("https://" + server + "/sdk");
+		// Connect to vCenter
+		return new ServiceInstance(url,username,password,true,PooledWSClient.CONNECT_TIMEOUT,PooledWSClient.READ_TIMEOUT);
+	}
+
+	// Ping the idle sessions and login again the expired ones
+	private static void keepAlive() {
+		ArrayList<Session> toPing = new ArrayList<Session>();
+		ArrayList<Session> toClose = new ArrayList<Session>();
+		synchronized (LOCK) {
+			long now = System.currentTimeMillis();
+			for (Server srv : servers.values()) {
+				evictIdle(srv, now, toClose);
+				for (Iterator<Session> it = srv.idle.iterator(); it.hasNext();) {
+					Session current = it.next();
+					if (now - current.lastPing >= KEEPALIVE_INTERVAL) {
+						// keep it out of the pool while pinging
+						it.remove();
+						toPing.add(current);
+					}
+				}
+			}
+		}
+		closeAll(toClose);
+		for (Session session : toPing) {
+			try {
+				// cheap call refreshing the vCenter session timeout
+				session.si.currentTime();
+			} catch (Exception e) {
+				// expired or broken session: login again
+				logout(session.si);
+				try {
+					session.si = connect(session.server, session.username, session.password);
+				} catch (Exception e2) {
+					session.si = null;
+				}
+			}
+			session.lastPing = System.currentTimeMillis();
+			synchronized (LOCK) {
+				Server srv = servers.get(session.server);
+				if (session.si == null) {
+					srv.open--;
+				} else {
+					// put it back keeping the most recently used first
+					ListIterator<Session> it = srv.idle.listIterator();
+					while (it.hasNext()) {
+						if (it.next().lastUsed < session.lastUsed) {
+							it.previous();
+							break;
+						}
+					}
+					it.add(session);
+				}
+				LOCK.notifyAll();
+			}
+		}
+	}
+
+	// Check if an error is vCenter rejecting the session
+	static boolean isNotAuthenticated(Throwable e) {
+		while (e != null) {
+			if (e instanceof NotAuthenticated) {
+				return true;
+			}
+			String message = e.getMessage();
+			if (message != null && message.contains("NotAuthenticated")) {
+				return true;
+			}
+			e = e.getCause();
+		}
+		return false;
+	}
+
+	// Move the idle sessions older than the timeout in the close list
+	private static void evictIdle(Server srv, long now, ArrayList<Session> toClose) {
+		// idle sessions are ordered from the most to the least recently used
+		while (!srv.idle.isEmpty() && now - srv.idle.getLast().lastUsed > IDLE_TIMEOUT) {
+			toClose.add(srv.idle.removeLast());
+			srv.open--;
+		}
+	}
+
+	// Logout sessions removed from the pool
+	private static void closeAll(ArrayList<Session> sessions) {
+		for (Session session : sessions) {
+			logout(session.si);
+		}
+	}
+
+	// Logout ignoring errors (the session may already be expired)
+	private static void logout(ServiceInstance si) {
+		ViewCache.discard(si);
+		try {
+			si.getServerConnection().logout();
+		} catch (Exception e) {
+			// nothing to do
+		}
+	}
+
+	// Sessions of a vCenter
+	private static class Server {
+		// number of opened sessions (idle and borrowed)
+		int open = 0;
+		// idle sessions, most recently used first
+		LinkedList<Session> idle = new LinkedList<Session>();
+	}
+
+	// A pooled session
+	private static class Session {
+		final String server;
+		final String username;
+		final String password;
+		ServiceInstance si;
+		long lastUsed;
+		long lastPing;
+
+		Session(String server, String username, String password, ServiceInstance si) {
+			this.server = server;
+			this.username = username;
+			this.password = password;
+			this.si = si;
+			this.lastUsed = System.currentTimeMillis();
+			this.lastPing = this.lastUsed;
+		}
+	}
+}
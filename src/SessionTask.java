@@ -0,0 +1,10 @@
+import com.vmware.vim25.mo.ServiceInstance;
+
+/**
+ * Work run by SessionPool.execute() on a pooled vCenter session.
+ */
+public interface SessionTask<T> {
+
+	public T run(ServiceInstance si) throws Exception;
+
+}
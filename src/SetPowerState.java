@@ -1,5 +1,3 @@
-import java.net.URL;
-
 import com.iconclude.webservices.extensions.java.interfaces.*;
 import com.iconclude.webservices.extensions.java.types.*;
 import com.iconclude.webservices.extensions.java.util.*;
@@ -68,18 +66,19 @@ public class SetPowerState implements IAction {
 	}
 
 	public static Task setPowerState(String server, String username, String password,
-			String name, String powerState) throws Exception {
-		// Get the vCenter URL
-		URL url = new URL("https://" + server + "/sdk");
-		// Connect to vCenter
-		ServiceInstance si = new ServiceInstance(url,username,password,true);
-		// Get the root Folder
-		Folder rootFolder = si.getRootFolder();
-		// Get the inventory navigator
-		InventoryNavigator navigator = new InventoryNavigator(rootFolder);
-		// Get proper references for variables on the deploy task.
-		// Search for specified template
-		VirtualMachine vm = (VirtualMachine) navigator.searchManagedEntity("VirtualMachine",name);
+			final String name, final String powerState) throws Exception {
+		// Run on a pooled vCenter session, logging in again if it expired
+		return SessionPool.execute(server, username, password, new SessionTask<Task>() {
+			@Override
+			public Task run(ServiceInstance si) throws Exception {
+				return setPowerState(si, name, powerState);
+			}
+		});
+	}
+
+	public static Task setPowerState(ServiceInstance si, String name, String powerState) throws Exception {
+		// Resolve the virtual machine through the name cache
+		VirtualMachine vm = (VirtualMachine) EntityCache.find(si, "VirtualMachine", name);
 		if (vm==null) {
 			throw new Exception("Virtual Machine not found.");
 		}
@@ -92,8 +91,6 @@ public class SetPowerState implements IAction {
 		} else if (powerState.toLowerCase().equals("powerOff".toLowerCase())) {
 			task = vm.powerOffVM_Task();
 		}
-		//logout
-		si.getServerConnection().logout();
 		return task;
 	}
 
@@ -1,5 +1,3 @@
-import java.net.URL;
-
 import com.iconclude.webservices.extensions.java.interfaces.*;
 import com.iconclude.webservices.extensions.java.types.*;
 import com.iconclude.webservices.extensions.java.util.*;
@@ -66,18 +64,19 @@ public class ShutdownVMGuest implements IAction {
 	}
 
 	public static GuestInfo shutdownVMGuest(String server, String username, String password,
-			String name) throws Exception {
-		// Get the vCenter URL
-		URL url = new URL("https://" + server + "/sdk");
-		// Connect to vCenter
-		ServiceInstance si = new ServiceInstance(url,username,password,true);
-		// Get the root Folder
-		Folder rootFolder = si.getRootFolder();
-		// Get the inventory navigator
-		InventoryNavigator navigator = new InventoryNavigator(rootFolder);
-		// Get proper references for variables on the deploy task.
-		// Search for specified template
-		VirtualMachine vm = (VirtualMachine) navigator.searchManagedEntity("VirtualMachine",name);
+			final String name) throws Exception {
+		// Run on a pooled vCenter session, logging in again if it expired
+		return SessionPool.execute(server, username, password, new SessionTask<GuestInfo>() {
+			@Override
+			public GuestInfo run(ServiceInstance si) throws Exception {
+				return shutdownVMGuest(si, name);
+			}
+		});
+	}
+
+	public static GuestInfo shutdownVMGuest(ServiceInstance si, String name) throws Exception {
+		// Resolve the virtual machine through the name cache
+		VirtualMachine vm = (VirtualMachine) EntityCache.find(si, "VirtualMachine", name);
 		if (vm==null) {
 			throw new Exception("Virtual Machine not found.");
 		}
@@ -86,8 +85,6 @@ public class ShutdownVMGuest implements IAction {
 		if ("guesttoolsrunning".equals(vm.getGuest().toolsRunningStatus.toLowerCase())) {
 			vm.shutdownGuest();
 		}
-		//logout
-		si.getServerConnection().logout();
 		return guest;
 	}
 
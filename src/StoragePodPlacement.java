@@ -0,0 +1,114 @@
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+import com.vmware.vim25.*;
+import com.vmware.vim25.mo.*;
+
+/**
+ * Places the clones of a batch on the datastores of a storage pod.
+ *
+ * Storage DRS is asked once for the batch. The datastores it recommends (all
+ * the usable datastores of the pod when it recommends none) are then handed
+ * out one clone at a time through DatastoreReservations, so the space of
+ * the clones already placed is deducted and the batch spreads over the
+ * datastores instead of all going to the first recommendation.
+ */
+public class StoragePodPlacement {
+
+	// vCenter host, key of the reservations
+	private final String host;
+
+	// Datastores the clones are placed on
+	private final ArrayList<DatastoreReservations.Candidate> candidates;
+
+	// Space reserved per clone (bytes)
+	private final long size;
+
+	private StoragePodPlacement(String host, ArrayList<DatastoreReservations.Candidate> candidates, long size) {
+		this.host = host;
+		this.candidates = candidates;
+		this.size = size;
+	}
+
+	/**
+	 * Ask Storage DRS for the datastores of a prepared deployment on a
+	 * storage pod and get their free space, name being a clone of the batch.
+	 */
+	public static StoragePodPlacement create(ServiceInstance si, DeployCustomVM.Deployment deployment, String name) throws Exception {
+		if (deployment.storagePod == null) {
+			throw new Exception("The deployment is not on a datastore cluster.");
+		}
+		// One recommendation for the whole batch, never applied
+		StorageResourceManager storageManager = new StorageResourceManager(si.getServerConnection(), si.getServiceContent().getStorageResourceManager());
+		StoragePlacementResult recommendation = storageManager.recommendDatastores(
+				DeployCustomVM.buildStorageSpec(deployment, name, DeployCustomVM.buildCloneSpec(deployment, null)));
+		LinkedHashSet<String> recommended = new LinkedHashSet<String>();
+		if (recommendation.recommendations != null) {
+			for (ClusterRecommendation cr : recommendation.recommendations) {
+				if (cr.action == null) {
+					continue;
+				}
+				for (ClusterAction action : cr.action) {
+					if (action instanceof StoragePlacementAction && ((StoragePlacementAction) action).destination != null) {
+						recommended.add(((StoragePlacementAction) action).destination.getVal());
+					}
+				}
+			}
+		}
+		// The datastores of the pod with their free space
+		ArrayList<DatastoreReservations.Candidate> all = new ArrayList<DatastoreReservations.Candidate>();
+		ArrayList<DatastoreReservations.Candidate> candidates = new ArrayList<DatastoreReservations.Candidate>();
+		for (ObjectContent oc : retrieveDatastores(si, deployment.storagePod)) {
+			if (!Boolean.TRUE.equals(PropertyRetriever.getValue(oc, "summary.accessible"))
+					|| !"normal".equals(PropertyRetriever.getValue(oc, "summary.maintenanceMode"))) {
+				continue;
+			}
+			DatastoreReservations.Candidate candidate = new DatastoreReservations.Candidate(oc.getObj(),
+					String.valueOf(PropertyRetriever.getValue(oc, "name")),
+					((Number) PropertyRetriever.getValue(oc, "summary.freeSpace")).longValue(),
+					((Number) PropertyRetriever.getValue(oc, "summary.capacity")).longValue());
+			all.add(candidate);
+			if (recommended.contains(oc.getObj().getVal())) {
+				candidates.add(candidate);
+			}
+		}
+		if (candidates.isEmpty()) {
+			candidates = all;
+		}
+		if (candidates.isEmpty()) {
+			throw new Exception("No usable datastore in the datastore cluster.");
+		}
+		return new StoragePodPlacement(si.getServerConnection().getUrl().getHost(), candidates, deployment.size);
+	}
+
+	/**
+	 * Reserve the space of the next clone on a datastore, the reservation
+	 * giving the datastore.
+	 */
+	public DatastoreReservations.Reservation next() throws Exception {
+		DatastoreReservations.Candidate candidate = DatastoreReservations.selectAndReserve(host, candidates, size);
+		if (candidate == null) {
+			throw new Exception("No datastore of the datastore cluster has enough free space.");
+		}
+		if (candidate.getReservation() == null) {
+			// nothing to reserve for an empty template
+			return DatastoreReservations.reserve(host, candidate.getMOR(), 0);
+		}
+		return candidate.getReservation();
+	}
+
+	// Retrieve the datastores of a storage pod
+	private static ArrayList<ObjectContent> retrieveDatastores(ServiceInstance si, ManagedObjectReference pod) throws Exception {
+		ObjectSpec os = new ObjectSpec();
+		os.setObj(pod);
+		os.setSkip(Boolean.TRUE);
+		os.setSelectSet(InventoryTraversal.build("Datastore"));
+		PropertySpec ps = new PropertySpec();
+		ps.setType("Datastore");
+		ps.setPathSet(new String[] { "name", "summary.freeSpace", "summary.capacity", "summary.maintenanceMode", "summary.accessible" });
+		PropertyFilterSpec spec = new PropertyFilterSpec();
+		spec.setObjectSet(new ObjectSpec[] { os });
+		spec.setPropSet(new PropertySpec[] { ps });
+		return PropertyRetriever.retrieve(si, spec);
+	}
+}
@@ -0,0 +1,213 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+
+import com.vmware.vim25.*;
+import com.vmware.vim25.mo.*;
+
+/**
+ * Waits for the completion of many tasks at once.
+ *
+ * All the tasks are registered in a single filter (info.state, info.progress
+ * and info.error) of a private PropertyCollector, then followed with
+ * WaitForUpdatesEx long polls: one connection whatever the number of tasks,
+ * each completion seen as soon as it happens.
+ */
+public class TaskTracker {
+
+	// Maximum duration of a long poll (s)
+	private static final int WAIT_SECONDS = Integer.getInteger("oovijava.tasks.waitSeconds", 60);
+
+	// Followed properties of the tasks
+	private static final String[] PROPS = new String[] { "info.state", "info.progress", "info.error" };
+
+	/**
+	 * Wait until all the tasks (or the first one when any is set) are
+	 * completed, or the timeout (ms, 0 for none) expires. The status of each
+	 * task is returned in the order of the given tasks.
+	 */
+	public static LinkedHashMap<String,Status> waitFor(ServiceInstance si, Collection<ManagedObjectReference> tasks,
+			long timeout, boolean any) throws Exception {
+		LinkedHashMap<String,Status> statuses = new LinkedHashMap<String,Status>();
+		for (ManagedObjectReference task : tasks) {
+			statuses.put(task.getVal(), new Status(task));
+		}
+		long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+		// private collector so the long poll does not block other callers
+		PropertyCollector pc = si.getPropertyCollector().createPropertyCollector();
+		try {
+			createFilter(pc, statuses);
+			WaitOptions options = new WaitOptions();
+			String version = "";
+			while (!isDone(statuses, any)) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					break;
+				}
+				options.setMaxWaitSeconds((int) Math.max(1, Math.min(WAIT_SECONDS, remaining / 1000)));
+				UpdateSet updates = pc.waitForUpdatesEx(version, options);
+				if (updates == null) {
+					// nothing changed during the long poll
+					continue;
+				}
+				version = updates.getVersion();
+				apply(statuses, updates);
+			}
+		} finally {
+			try {
+				pc.destroyPropertyCollector();
+			} catch (Exception e) {
+				// destroyed with the session anyway
+			}
+		}
+		// the space of completed clones is reported by vCenter or unused
+		String host = si.getServerConnection().getUrl().getHost();
+		for (Status status : statuses.values()) {
+			if (status.isCompleted()) {
+				DatastoreReservations.completed(host, status.task);
+			}
+		}
+		return statuses;
+	}
+
+	// Register the known tasks in one filter, the tasks already gone are left out
+	private static void createFilter(PropertyCollector pc, LinkedHashMap<String,Status> statuses) throws Exception {
+		while (true) {
+			ArrayList<ObjectSpec> objectSet = new ArrayList<ObjectSpec>();
+			for (Status status : statuses.values()) {
+				if (!status.unknown) {
+					ObjectSpec os = new ObjectSpec();
+					os.setObj(status.task);
+					os.setSkip(false);
+					objectSet.add(os);
+				}
+			}
+			if (objectSet.isEmpty()) {
+				return;
+			}
+			PropertySpec ps = new PropertySpec();
+			ps.setType("Task");
+			ps.setPathSet(PROPS);
+			PropertyFilterSpec spec = new PropertyFilterSpec();
+			spec.setObjectSet(objectSet.toArray(new ObjectSpec[objectSet.size()]));
+			spec.setPropSet(new PropertySpec[] { ps });
+			try {
+				pc.createFilter(spec, true);
+				return;
+			} catch (ManagedObjectNotFound e) {
+				// unknown or expired task
+				Status status = e.getObj() == null ? null : statuses.get(e.getObj().getVal());
+				if (status == null || status.unknown) {
+					throw e;
+				}
+				status.unknown = true;
+			}
+		}
+	}
+
+	// Apply an update set to the statuses
+	private static void apply(LinkedHashMap<String,Status> statuses, UpdateSet updates) {
+		if (updates.getFilterSet() == null) {
+			return;
+		}
+		for (PropertyFilterUpdate filterUpdate : updates.getFilterSet()) {
+			if (filterUpdate.getMissingSet() != null) {
+				// task gone (expired or removed) while followed
+				for (MissingObject missing : filterUpdate.getMissingSet()) {
+					Status status = statuses.get(missing.getObj().getVal());
+					if (status != null && !status.isCompleted()) {
+						status.unknown = true;
+					}
+				}
+			}
+			if (filterUpdate.getObjectSet() == null) {
+				continue;
+			}
+			for (ObjectUpdate update : filterUpdate.getObjectSet()) {
+				Status status = statuses.get(update.getObj().getVal());
+				if (status == null || update.getChangeSet() == null) {
+					continue;
+				}
+				for (PropertyChange change : update.getChangeSet()) {
+					Object value = change.getOp() == PropertyChangeOp.remove ? null : change.getVal();
+					if ("info.state".equals(change.getName())) {
+						status.state = (TaskInfoState) value;
+					} else if ("info.progress".equals(change.getName())) {
+						status.progress = (Integer) value;
+					} else if ("info.error".equals(change.getName())) {
+						status.error = (LocalizedMethodFault) value;
+					}
+				}
+			}
+		}
+	}
+
+	// Check if the wait is over
+	private static boolean isDone(LinkedHashMap<String,Status> statuses, boolean any) {
+		int completed = 0;
+		int unknown = 0;
+		for (Status status : statuses.values()) {
+			if (status.unknown) {
+				unknown++;
+			} else if (status.isCompleted()) {
+				completed++;
+			}
+		}
+		return completed + unknown == statuses.size() || (any && completed > 0);
+	}
+
+	/**
+	 * State of a followed task.
+	 */
+	public static class Status {
+		final ManagedObjectReference task;
+		TaskInfoState state;
+		Integer progress;
+		LocalizedMethodFault error;
+		boolean unknown = false;
+
+		Status(ManagedObjectReference task) {
+			this.task = task;
+		}
+
+		public ManagedObjectReference getTask() {
+			return task;
+		}
+
+		// Null until known
+		public TaskInfoState getState() {
+			return state;
+		}
+
+		public Integer getProgress() {
+			return progress;
+		}
+
+		public LocalizedMethodFault getError() {
+			return error;
+		}
+
+		// The task does not exist (anymore)
+		public boolean isUnknown() {
+			return unknown;
+		}
+
+		public boolean isCompleted() {
+			return state == TaskInfoState.success || state == TaskInfoState.error;
+		}
+
+		@Override
+		public String toString() {
+			if (unknown) {
+				return "unknown";
+			}
+			if (state == TaskInfoState.error) {
+				return "error: " + (error != null ? error.getLocalizedMessage() : "");
+			}
+			if (state == TaskInfoState.running && progress != null) {
+				return "running " + progress + "%";
+			}
+			return String.valueOf(state);
+		}
+	}
+}
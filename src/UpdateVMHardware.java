@@ -1,6 +1,5 @@
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
-import java.net.URL;
 import java.util.ArrayList;
 
 import java.util.Collections;
@@ -146,23 +145,25 @@ public class UpdateVMHardware implements IAction {
 	}
 
 	public static Task updateVMHardware(String server, String username,
-			String password, String name, String cpu, String mem, String disks, String portgroup) throws Exception {
+			String password, final String name, final String cpu, final String mem, final String disks, final String portgroup) throws Exception {
+		// Run on a pooled vCenter session, logging in again if it expired
+		return SessionPool.execute(server, username, password, new SessionTask<Task>() {
+			@Override
+			public Task run(ServiceInstance si) throws Exception {
+				return updateVMHardware(si, name, cpu, mem, disks, portgroup);
+			}
+		});
+	}
+
+	public static Task updateVMHardware(ServiceInstance si,
+			String name, String cpu, String mem, String disks, String portgroup) throws Exception {
 		// Set the parameters
 		int numcpu = -1;
 		long memorymb = -1;
 		if ((cpu!=null) & (!"".equals(cpu))) { numcpu = Integer.parseInt(cpu); }
 		if ((mem!=null) & (!"".equals(mem))) { memorymb = (long) (Integer.parseInt(mem) * 1024); }
-		// Get the vCenter URL
-		URL url = new URL("https://" + server + "/sdk");
-		// Connect to vCenter
-		ServiceInstance si = new ServiceInstance(url,username,password,true);
-		// Get the root Folder
-		Folder rootFolder = si.getRootFolder();
-		// Get the inventory navigator
-		InventoryNavigator navigator = new InventoryNavigator(rootFolder);
-		// Get proper references for variables on the deploy task.
-		// Search for specified template
-		VirtualMachine vm = (VirtualMachine) navigator.searchManagedEntity("VirtualMachine",name);
+		// Resolve the virtual machine through the name cache
+		VirtualMachine vm = (VirtualMachine) EntityCache.find(si, "VirtualMachine", name);
 		if (vm==null) {
 			throw new Exception("Virtual Machine not found.");
 		}
@@ -212,7 +213,7 @@ public class UpdateVMHardware implements IAction {
 		ArrayList<VirtualDeviceConfigSpec> devConfSpecs = new ArrayList<VirtualDeviceConfigSpec>();
 		// Update the portgroup if needed
 		if (portgroup!=null) {
-			Network pg = (Network) navigator.searchManagedEntity("Network", portgroup);
+			Network pg = (Network) EntityCache.find(si, "Network", portgroup);
 			if (pg==null) { throw new Exception("Provided port group not found"); }
 			VirtualDeviceConfigSpec devConfSpec = new VirtualDeviceConfigSpec();
 			devConfSpec.operation  = VirtualDeviceConfigSpecOperation.edit;
@@ -332,7 +333,6 @@ public class UpdateVMHardware implements IAction {
 		if (changed) {
 			task = vm.reconfigVM_Task(vmConfSpec);
 		}
-		si.getServerConnection().logout();
 		return task;
 	}	
 	
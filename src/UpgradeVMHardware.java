@@ -1,5 +1,3 @@
-import java.net.URL;
-
 import com.iconclude.webservices.extensions.java.interfaces.*;
 import com.iconclude.webservices.extensions.java.types.*;
 import com.iconclude.webservices.extensions.java.util.*;
@@ -66,25 +64,24 @@ public class UpgradeVMHardware implements IAction {
 	}
 
 	public static Task upgradeVMHardware(String server, String username, String password,
-			String name) throws Exception {
-		// Get the vCenter URL
-		URL url = new URL("https://" + server + "/sdk");
-		// Connect to vCenter
-		ServiceInstance si = new ServiceInstance(url,username,password,true);
-		// Get the root Folder
-		Folder rootFolder = si.getRootFolder();
-		// Get the inventory navigator
-		InventoryNavigator navigator = new InventoryNavigator(rootFolder);
-		// Get proper references for variables on the deploy task.
-		// Search for specified template
-		VirtualMachine vm = (VirtualMachine) navigator.searchManagedEntity("VirtualMachine",name);
+			final String name) throws Exception {
+		// Run on a pooled vCenter session, logging in again if it expired
+		return SessionPool.execute(server, username, password, new SessionTask<Task>() {
+			@Override
+			public Task run(ServiceInstance si) throws Exception {
+				return upgradeVMHardware(si, name);
+			}
+		});
+	}
+
+	public static Task upgradeVMHardware(ServiceInstance si, String name) throws Exception {
+		// Resolve the virtual machine through the name cache
+		VirtualMachine vm = (VirtualMachine) EntityCache.find(si, "VirtualMachine", name);
 		if (vm==null) {
 			throw new Exception("Virtual Machine not found.");
 		}
 		// Upgrade Hardware
 		Task task = vm.upgradeVM_Task(null);
-		//logout
-		si.getServerConnection().logout();
 		return task;
 	}
 
@@ -0,0 +1,113 @@
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import com.vmware.vim25.mo.*;
+
+/**
+ * Container views kept per vCenter session.
+ *
+ * A container view lists the objects of a type under a root on vCenter side
+ * and stays current as the inventory changes, so a view created for a search
+ * is reused by the next searches run on the same pooled session. The views of
+ * a session are destroyed when the pool logs it out.
+ */
+public class ViewCache {
+
+	// Maximum number of views kept per session
+	private static final int MAX_VIEWS = Integer.getInteger("oovijava.views.maxPerSession", 16);
+
+	// Views per session, by root, type and recursion
+	private static final IdentityHashMap<ServiceInstance,Views> sessions = new IdentityHashMap<ServiceInstance,Views>();
+
+	/**
+	 * Get a recursive container view of the objects of a type under a root,
+	 * created on first use.
+	 */
+	public static ContainerView get(ServiceInstance si, ManagedEntity root, String type) throws Exception {
+		Views views;
+		synchronized (sessions) {
+			views = sessions.get(si);
+			if (views == null) {
+				views = new Views();
+				sessions.put(si, views);
+			}
+		}
+		String key = root.getMOR().getType() + ":" + root.getMOR().getVal() + "|" + type;
+		ContainerView view;
+		ContainerView eldest = null;
+		synchronized (views) {
+			view = views.get(key);
+			if (view != null) {
+				return view;
+			}
+			view = si.getViewManager().createContainerView(root, new String[] { type }, true);
+			views.put(key, view);
+			if (views.size() > MAX_VIEWS) {
+				// forget the least recently used view
+				Iterator<ContainerView> it = views.values().iterator();
+				eldest = it.next();
+				it.remove();
+			}
+		}
+		destroy(eldest);
+		return view;
+	}
+
+	/**
+	 * Forget a view that is not valid anymore.
+	 */
+	public static void remove(ServiceInstance si, ContainerView view) {
+		Views views;
+		synchronized (sessions) {
+			views = sessions.get(si);
+		}
+		if (views == null) {
+			return;
+		}
+		synchronized (views) {
+			views.values().remove(view);
+		}
+		destroy(view);
+	}
+
+	/**
+	 * Destroy all the views of a session before it is logged out.
+	 */
+	public static void discard(ServiceInstance si) {
+		Views views;
+		synchronized (sessions) {
+			views = sessions.remove(si);
+		}
+		if (views == null) {
+			return;
+		}
+		synchronized (views) {
+			for (ContainerView view : views.values()) {
+				destroy(view);
+			}
+			views.clear();
+		}
+	}
+
+	// Destroy a view ignoring errors (the session may already be expired)
+	private static void destroy(ContainerView view) {
+		if (view == null) {
+			return;
+		}
+		try {
+			view.destroyView();
+		} catch (Exception e) {
+			// dropped with the session anyway
+		}
+	}
+
+	// Views of a session, least recently used first
+	private static class Views extends LinkedHashMap<String,ContainerView> {
+		private static final long serialVersionUID = 1L;
+
+		Views() {
+			super(16, 0.75f, true);
+		}
+	}
+}
@@ -0,0 +1,263 @@
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import com.iconclude.webservices.extensions.java.interfaces.*;
+import com.iconclude.webservices.extensions.java.types.*;
+import com.iconclude.webservices.extensions.java.util.*;
+import com.opsware.pas.content.commons.util.StringUtils;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.mo.*;
+
+public class WaitForTasks implements IAction {
+
+	// Description of the action
+	private static String DESCRIPTION =  ""
+			+"<pre>"
+			+"Wait for the completion of tasks.\n"
+			+"\n"
+			+"All the tasks are followed with a single PropertyCollector filter and\n"
+			+"long poll, instead of polling each task.\n"
+			+"\n"
+			+"Inputs:\n"
+			+"-vCenter: vCenter server\n"
+			+"-Username: vCenter username\n"
+			+"-Password: vCenter password\n"
+			+"-tasks: tasks to wait for (task-123 or Task:task-123) separated by ,\n"
+			+"-wait: all to wait for all the tasks, any to return at the first completion (default: all)\n"
+			+"-timeout: maximum wait in s, 0 for none (default: oovijava.tasks.timeout)\n"
+			+"\n"
+			+"Responses:\n"
+			+"-success: the tasks are completed without error\n"
+			+"-failure: a task failed, is unknown or the wait failed\n"
+			+"-timeout: the tasks were not completed in time\n"
+			+"\n</pre>";
+
+	// Success return code
+	public static final int SUCCESS = 0;
+
+	// Failure return code
+	public static final int FAILURE = 1;
+
+	// Timeout return code
+	public static final int TIMEOUT = 2;
+
+	// Maximum wait when no timeout is given (s)
+	private static final long DEFAULT_TIMEOUT = Long.getLong("oovijava.tasks.timeout", 14400L);
+
+	// result String identifier.
+	private static final String RETURNRESULT = "returnResult";
+
+	@Override
+	public ActionResult execute(ISessionContext session, ActionRequest request,
+			IActionRegistry registry) throws Exception {
+
+		// Create the result
+		ActionResult result = new ActionResult();
+
+		String server = ActionRequestUtils.resolveStringParam(request, "server");
+		String username = ActionRequestUtils.resolveStringParam(request, "username");
+		String password = ActionRequestUtils.resolveStringParam(request, "password");
+		String tasks = ActionRequestUtils.resolveStringParam(request, "tasks");
+		String wait = ActionRequestUtils.resolveStringParam(request, "wait");
+		String timeout = ActionRequestUtils.resolveStringParam(request, "timeout");
+
+		try {
+			// Wait for the tasks
+			LinkedHashMap<String,TaskTracker.Status> statuses = waitForTasks(server, username, password, tasks, wait, timeout);
+			// Indicate the result (states & result)
+			ArrayList<String> completed = new ArrayList<String>();
+			ArrayList<String> failed = new ArrayList<String>();
+			ArrayList<String> pending = new ArrayList<String>();
+			StringBuilder states = new StringBuilder();
+			for (TaskTracker.Status status : statuses.values()) {
+				String task = status.getTask().getVal();
+				if (status.isUnknown() || status.getState() == TaskInfoState.error) {
+					failed.add(task);
+				} else if (status.isCompleted()) {
+					completed.add(task);
+				} else {
+					pending.add(task);
+				}
+				states.append(task).append(": ").append(status).append("\n");
+			}
+			result.add("completed",join(completed));
+			result.add("failed",join(failed));
+			result.add("pending",join(pending));
+			result.add("states",states.toString());
+			result.add(WaitForTasks.RETURNRESULT,completed.size() + " completed, " + failed.size() + " failed, " + pending.size() + " pending");
+			// Set the return code
+			if (!failed.isEmpty()) {
+				result.setReturnCode(WaitForTasks.FAILURE);
+			} else if (!pending.isEmpty() && (completed.isEmpty() || !"any".equalsIgnoreCase(wait))) {
+				result.setReturnCode(WaitForTasks.TIMEOUT);
+			} else {
+				result.setReturnCode(WaitForTasks.SUCCESS);
+			}
+		} catch (Exception e) {
+			// Set failed return code
+			result.setReturnCode(WaitForTasks.FAILURE);
+			// Set Exception Stack trace
+			result.setException(StringUtils.toString(e));
+			// Set the error message
+			result.add(WaitForTasks.RETURNRESULT,e.getMessage());
+		}
+
+		return result;
+	}
+
+	@Override
+	public ActionTemplate getActionTemplate() {
+
+		// Create the action template
+		ActionTemplate actionTemplate = new ActionTemplate();
+
+		// Set the description
+		actionTemplate.setDescription(WaitForTasks.DESCRIPTION);
+
+		// Set the vCenter argument
+		RASBinding vcenterarg = RASBindingFactory.createPromptBinding("vCenter Server:", true);
+		// Set the username argument
+		RASBinding usernamearg = RASBindingFactory.createPromptBinding("vCenter User:", true);
+		// Set the password argument
+		RASBinding passwordarg = RASBindingFactory.createPromptBinding("vCenter Password:", true, true);
+		// Set the tasks argument
+		RASBinding tasksarg = RASBindingFactory.createPromptBinding("Tasks:", true);
+		// Set the wait argument
+		RASBinding waitarg = RASBindingFactory.createPromptBinding("Wait (all/any):", false);
+		// Set the timeout argument
+		RASBinding timeoutarg = RASBindingFactory.createPromptBinding("Timeout (s):", false);
+
+		// Create the parameter map
+		Map parameters = new Map();
+		parameters.add("server",vcenterarg);
+		parameters.add("username",usernamearg);
+		parameters.add("password",passwordarg);
+		parameters.add("tasks",tasksarg);
+		parameters.add("wait",waitarg);
+		parameters.add("timeout",timeoutarg);
+
+		// Set the parameter map
+		actionTemplate.setParameters(parameters);
+
+		// Create the result fields map
+		Map resultFields = new Map();
+		resultFields.add("completed","");
+		resultFields.add("failed","");
+		resultFields.add("pending","");
+		resultFields.add("states","");
+		resultFields.add(RETURNRESULT, "");
+		actionTemplate.setResultFields(resultFields);
+
+		// Create the response map
+		Map responses = new Map();
+		responses.add("success",String.valueOf(WaitForTasks.SUCCESS));
+		responses.add("failure",String.valueOf(WaitForTasks.FAILURE));
+		responses.add("timeout",String.valueOf(WaitForTasks.TIMEOUT));
+
+		// Set the response map
+		actionTemplate.setResponses(responses);
+
+		return actionTemplate;
+	}
+
+	public static LinkedHashMap<String,TaskTracker.Status> waitForTasks(String server, String username, String password,
+			String tasks, String wait, String timeout) throws Exception {
+		final ArrayList<ManagedObjectReference> references = parseTasks(tasks);
+		final boolean any = "any".equalsIgnoreCase(wait == null ? "" : wait.trim());
+		if (!any && wait != null && !wait.trim().equals("") && !"all".equalsIgnoreCase(wait.trim())) {
+			throw new Exception("Wait nor all or any or empty.");
+		}
+		final long timeoutMs;
+		try {
+			timeoutMs = (timeout == null || timeout.trim().equals("") ? DEFAULT_TIMEOUT : Long.parseLong(timeout.trim())) * 1000;
+		} catch (NumberFormatException e) {
+			throw new Exception("Invalid timeout: " + timeout);
+		}
+		// Long poll on a session of its own: the wait can last long (unbounded
+		// with a timeout of 0) and must not hold a pooled session meanwhile
+		ServiceInstance si = SessionPool.connect(server, username, password);
+		try {
+			return TaskTracker.waitFor(si, references, timeoutMs, any);
+		} finally {
+			try {
+				si.getServerConnection().logout();
+			} catch (Exception e) {
+				// nothing to do
+			}
+		}
+	}
+
+	// Parse the tasks input
+	private static ArrayList<ManagedObjectReference> parseTasks(String tasks) throws Exception {
+		ArrayList<ManagedObjectReference> references = new ArrayList<ManagedObjectReference>();
+		for (String task : tasks.split(",")) {
+			task = task.trim();
+			if (task.startsWith("Task:")) {
+				task = task.substring("Task:".length());
+			}
+			if (task.equals("")) {
+				continue;
+			}
+			ManagedObjectReference mor = new ManagedObjectReference();
+			mor.setType("Task");
+			mor.setVal(task);
+			references.add(mor);
+		}
+		if (references.isEmpty()) {
+			throw new Exception("No task provided.");
+		}
+		return references;
+	}
+
+	// Join values with ,
+	private static String join(ArrayList<String> values) {
+		StringBuilder result = new StringBuilder();
+		for (String value : values) {
+			if (result.length() > 0) {
+				result.append(",");
+			}
+			result.append(value);
+		}
+		return result.toString();
+	}
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		String server = null;
+		String username = null;
+		String password = null;
+		String tasks = null;
+		String wait = null;
+		String timeout = null;
+
+		BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+
+		try {
+			System.out.print("vCenter Server:");
+			server = br.readLine();
+			System.out.print("Username:");
+			username = br.readLine();
+			System.out.print("Password:");
+			password =br.readLine();
+			System.out.print("Tasks:");
+			tasks = br.readLine();
+			System.out.print("Wait (all/any):");
+			wait = br.readLine();
+			System.out.print("Timeout (s):");
+			timeout = br.readLine();
+			LinkedHashMap<String,TaskTracker.Status> statuses = WaitForTasks.waitForTasks(server, username, password, tasks, wait, timeout);
+			for (TaskTracker.Status status : statuses.values()) {
+				System.out.println(status.getTask().getVal() + ": " + status);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.out.println(e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,77 @@
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool of threads running the concurrent parts of the actions.
+ *
+ * A task submitted from a worker thread runs in place, so nested fan-outs
+ * can't fill the pool with tasks waiting for queued ones.
+ */
+public class Workers {
+
+	// Maximum number of worker threads
+	private static final int MAX_THREADS = Integer.getInteger("oovijava.workers.maxThreads", 8);
+
+	// Worker thread witness
+	private static final ThreadLocal<Boolean> worker = new ThreadLocal<Boolean>();
+
+	// Worker threads, stopped when idle
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+			60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable r) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					worker.set(Boolean.TRUE);
+					r.run();
+				}
+			}, "oovijava-worker");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	static {
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Run a task on a worker thread, in place when already on one.
+	 */
+	public static <T> Future<T> submit(Callable<T> task) {
+		if (worker.get() != null) {
+			FutureTask<T> future = new FutureTask<T>(task);
+			future.run();
+			return future;
+		}
+		return executor.submit(task);
+	}
+
+	/**
+	 * Get the maximum number of worker threads, tasks beyond it are queued.
+	 */
+	public static int getMaxThreads() {
+		return MAX_THREADS;
+	}
+
+	/**
+	 * Wait for the result of a task, throwing its error if it failed.
+	 */
+	public static <T> T get(Future<T> future) throws Exception {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+}